@@ -0,0 +1,351 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chat.dim.format.Base64;
+import chat.dim.format.JSON;
+
+/**
+ *  Compact binary encoding for message records
+ *
+ *      +-------+----------------+
+ *      | MAGIC | value          |
+ *      +-------+----------------+
+ *        1B      tag + data
+ *
+ *  Each value starts with a tag byte:
+ *
+ *      NULL, FALSE, TRUE
+ *      INT     - zigzag varint
+ *      DOUBLE  - 8 bytes (BE)
+ *      STRING  - varint length + UTF-8 bytes
+ *      BYTES   - varint length + raw bytes (Base64 string in the message)
+ *      LIST    - varint count + values
+ *      MAP     - varint count + (string key + value) pairs
+ *      NUMBER  - varint length + decimal text
+ *
+ *  A JsON payload never starts with MAGIC, so both formats can be mixed
+ *  in one message log.
+ */
+public final class BinaryCodec {
+
+    static final byte MAGIC = (byte) 0xB1;
+
+    private static final byte NULL   = 0;
+    private static final byte FALSE  = 1;
+    private static final byte TRUE   = 2;
+    private static final byte INT    = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte BYTES  = 6;
+    private static final byte LIST   = 7;
+    private static final byte MAP    = 8;
+    private static final byte NUMBER = 9;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // values of these keys are Base64 encoded binary data
+    private static final Set<String> BINARY_KEYS = new HashSet<>(Arrays.asList(
+            "data", "thumbnail", "key", "signature", "fingerprint"
+    ));
+    // short strings are not worth decoding
+    private static final int BINARY_MIN_LENGTH = 16;
+
+    /**
+     *  Streaming writer
+     */
+    public static class Writer {
+
+        private final OutputStream out;
+
+        public Writer(OutputStream out) {
+            super();
+            this.out = out;
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        private void writeBytes(byte tag, byte[] data) throws IOException {
+            out.write(tag);
+            writeVarint(data.length);
+            out.write(data);
+        }
+
+        private void writeString(String string, boolean binary) throws IOException {
+            if (binary && string.length() >= BINARY_MIN_LENGTH) {
+                byte[] data;
+                try {
+                    data = Base64.decode(string);
+                } catch (IllegalArgumentException e) {
+                    // not Base64, keep it as string
+                    data = null;
+                }
+                if (data != null && string.equals(Base64.encode(data))) {
+                    writeBytes(BYTES, data);
+                    return;
+                }
+            }
+            writeBytes(STRING, string.getBytes(UTF_8));
+        }
+
+        private void writeNumber(Number number) throws IOException {
+            if (number instanceof Integer || number instanceof Long
+                    || number instanceof Short || number instanceof Byte) {
+                long value = number.longValue();
+                out.write(INT);
+                writeVarint((value << 1) ^ (value >> 63));
+            } else if (number instanceof Double || number instanceof Float) {
+                long bits = Double.doubleToLongBits(number.doubleValue());
+                out.write(DOUBLE);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            } else {
+                writeBytes(NUMBER, number.toString().getBytes(UTF_8));
+            }
+        }
+
+        private void writeValue(Object value, boolean binary) throws IOException {
+            if (value == null) {
+                out.write(NULL);
+            } else if (value instanceof Boolean) {
+                out.write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Number) {
+                writeNumber((Number) value);
+            } else if (value instanceof String) {
+                writeString((String) value, binary);
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.write(MAP);
+                writeVarint(map.size());
+                String key;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    key = entry.getKey().toString();
+                    writeBytes(STRING, key.getBytes(UTF_8));
+                    writeValue(entry.getValue(), BINARY_KEYS.contains(key));
+                }
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                out.write(LIST);
+                writeVarint(list.size());
+                for (Object item : list) {
+                    writeValue(item, false);
+                }
+            } else {
+                // other objects (ID, ...) are stored as string
+                writeString(value.toString(), false);
+            }
+        }
+
+        /**
+         *  Write one value (with MAGIC)
+         *
+         * @param value - Map/List/String/Number/Boolean/null
+         */
+        public void write(Object value) throws IOException {
+            out.write(MAGIC);
+            writeValue(value, false);
+        }
+    }
+
+    /**
+     *  Streaming reader
+     */
+    public static class Reader {
+
+        private final InputStream in;
+
+        public Reader(InputStream in) {
+            super();
+            this.in = in;
+        }
+
+        private int readByte() throws IOException {
+            int ch = in.read();
+            if (ch < 0) {
+                throw new EOFException();
+            }
+            return ch;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            int ch;
+            for (int shift = 0; shift < 64; shift += 7) {
+                ch = readByte();
+                value |= (long) (ch & 0x7F) << shift;
+                if ((ch & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+
+        private byte[] readBytes() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("length error: " + length);
+            }
+            byte[] data = new byte[(int) length];
+            int pos = 0, cnt;
+            while (pos < data.length) {
+                cnt = in.read(data, pos, data.length - pos);
+                if (cnt < 0) {
+                    throw new EOFException();
+                }
+                pos += cnt;
+            }
+            return data;
+        }
+
+        private Object readValue() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case INT: {
+                    long zigzag = readVarint();
+                    long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return (int) value;
+                    }
+                    return value;
+                }
+                case DOUBLE: {
+                    long bits = 0;
+                    for (int i = 0; i < 8; ++i) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                }
+                case STRING:
+                    return new String(readBytes(), UTF_8);
+                case BYTES:
+                    return Base64.encode(readBytes());
+                case NUMBER:
+                    return new BigDecimal(new String(readBytes(), UTF_8));
+                case LIST: {
+                    int count = (int) readVarint();
+                    List<Object> list = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case MAP: {
+                    int count = (int) readVarint();
+                    Map<String, Object> map = new LinkedHashMap<>(count * 2);
+                    for (int i = 0; i < count; ++i) {
+                        if (readByte() != STRING) {
+                            throw new IOException("map key error");
+                        }
+                        map.put(new String(readBytes(), UTF_8), readValue());
+                    }
+                    return map;
+                }
+                default:
+                    throw new IOException("unknown tag: " + tag);
+            }
+        }
+
+        /**
+         *  Read next value
+         *
+         * @return value; null on end of stream
+         */
+        public Object read() throws IOException {
+            int ch = in.read();
+            if (ch < 0) {
+                return null;
+            }
+            if ((byte) ch != MAGIC) {
+                throw new IOException("not a binary record: " + ch);
+            }
+            return readValue();
+        }
+    }
+
+    //-------- record payloads
+
+    static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] == MAGIC;
+    }
+
+    static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try {
+            new Writer(out).write(value);
+        } catch (IOException e) {
+            // should not happen for memory stream
+            throw new IllegalArgumentException("failed to encode: " + value, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     *  Decode record payload in binary or JsON format
+     *
+     * @param payload - record data
+     * @return message dictionary
+     */
+    static Object decode(byte[] payload) {
+        if (!isBinary(payload)) {
+            return JSON.decode(payload);
+        }
+        try {
+            return new Reader(new ByteArrayInputStream(payload)).read();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Compressed segment of message log
+ *
+ *      "/sdcard/chat.dim.sechat/dkd/{address}/messages.{N}.z"
+ *
+ *      +-------+------------+------------+-------+-----------------+--------+
+ *      | magic | raw length | block size | count | offsets         | blocks |
+ *      +-------+------------+------------+-------+-----------------+--------+
+ *        4B      4B           4B           4B      4B * (count + 1)
+ *
+ *  The raw segment is split into blocks of BLOCK_SIZE and deflated one by one,
+ *  so reading a record only needs to inflate the blocks it lies in.
+ */
+class CompressedSegment {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x444B5A31;  // "DKZ1"
+    private static final int HEAD_SIZE = 16;
+
+    private final File file;
+
+    private int rawLength = -1;
+    private int blockSize;
+    private int[] offsets;  // offsets of blocks (relative to the first block)
+
+    // last inflated block
+    private int cachedBlock = -1;
+    private byte[] cachedData = null;
+
+    CompressedSegment(File file) {
+        super();
+        this.file = file;
+    }
+
+    private void open(RandomAccessFile raf) throws IOException {
+        if (rawLength >= 0) {
+            return;
+        }
+        if (raf.readInt() != MAGIC) {
+            throw new IOException("not a compressed segment: " + file);
+        }
+        int length = raf.readInt();
+        blockSize = raf.readInt();
+        int count = raf.readInt();
+        offsets = new int[count + 1];
+        for (int index = 0; index <= count; ++index) {
+            offsets[index] = raf.readInt();
+        }
+        rawLength = length;
+    }
+
+    private int dataStart() {
+        return HEAD_SIZE + offsets.length * 4;
+    }
+
+    /**
+     *  Get length of the raw segment
+     *
+     * @return raw length
+     */
+    synchronized long length() throws IOException {
+        if (rawLength < 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                open(raf);
+            } finally {
+                raf.close();
+            }
+        }
+        return rawLength;
+    }
+
+    private byte[] inflateBlock(RandomAccessFile raf, int block) throws IOException {
+        if (block == cachedBlock) {
+            return cachedData;
+        }
+        byte[] input = new byte[offsets[block + 1] - offsets[block]];
+        raf.seek(dataStart() + offsets[block]);
+        raf.readFully(input);
+        int size = Math.min(blockSize, rawLength - block * blockSize);
+        byte[] output = new byte[size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int pos = 0;
+            while (pos < size) {
+                int cnt = inflater.inflate(output, pos, size - pos);
+                if (cnt == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                pos += cnt;
+            }
+            if (pos != size) {
+                throw new IOException("block " + block + " corrupted: " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("block " + block + " corrupted: " + file, e);
+        } finally {
+            inflater.end();
+        }
+        cachedBlock = block;
+        cachedData = output;
+        return output;
+    }
+
+    /**
+     *  Read bytes of the raw segment
+     *
+     * @param offset - raw offset
+     * @param length - bytes count; -1 means to the end
+     * @return raw bytes
+     */
+    synchronized byte[] read(long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            open(raf);
+            if (length < 0) {
+                length = (int) (rawLength - offset);
+            }
+            if (offset < 0 || offset + length > rawLength) {
+                throw new IOException("out of range: " + offset + ", " + length + ", " + file);
+            }
+            byte[] data = new byte[length];
+            int pos = 0;
+            long current;
+            int block, start, cnt;
+            byte[] buffer;
+            while (pos < length) {
+                current = offset + pos;
+                block = (int) (current / blockSize);
+                start = (int) (current % blockSize);
+                buffer = inflateBlock(raf, block);
+                cnt = Math.min(buffer.length - start, length - pos);
+                System.arraycopy(buffer, start, data, pos, cnt);
+                pos += cnt;
+            }
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     *  Compress raw segment into target file
+     *
+     * @param data - raw segment data
+     * @param target - compressed segment file
+     * @return compressed file length
+     */
+    static long compress(byte[] data, File target) throws IOException {
+        int count = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] offsets = new int[count + 1];
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(data.length / 2);
+        byte[] buffer = new byte[BLOCK_SIZE];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            int start, cnt;
+            for (int block = 0; block < count; ++block) {
+                start = block * BLOCK_SIZE;
+                deflater.reset();
+                deflater.setInput(data, start, Math.min(BLOCK_SIZE, data.length - start));
+                deflater.finish();
+                while (!deflater.finished()) {
+                    cnt = deflater.deflate(buffer);
+                    blocks.write(buffer, 0, cnt);
+                }
+                offsets[block + 1] = blocks.size();
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] head = new byte[HEAD_SIZE + offsets.length * 4];
+        MessageLog.writeInt(MAGIC, head, 0);
+        MessageLog.writeInt(data.length, head, 4);
+        MessageLog.writeInt(BLOCK_SIZE, head, 8);
+        MessageLog.writeInt(count, head, 12);
+        for (int index = 0; index < offsets.length; ++index) {
+            MessageLog.writeInt(offsets[index], head, HEAD_SIZE + index * 4);
+        }
+        // write into a temporary file, and then rename it
+        File temp = new File(target.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            fos.write(head);
+            blocks.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(target)) {
+            throw new IOException("failed to rename: " + temp);
+        }
+        return target.length();
+    }
+}
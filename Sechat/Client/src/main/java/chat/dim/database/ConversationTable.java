@@ -26,27 +26,98 @@
 package chat.dim.database;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import chat.dim.ID;
 import chat.dim.filesys.ExternalStorage;
 import chat.dim.model.Facebook;
+import chat.dim.utils.IDPool;
 import chat.dim.utils.Log;
 
 public class ConversationTable extends ExternalStorage {
 
+    // conversations sorted by last time (newest first)
     private List<ID> conversationList = null;
+    // conversation ID => summary {"ID": "...", "time": 0, "text": "...", "unread": 0}
+    private Map<ID, Map<String, Object>> summaries = null;
+    // conversations scanned from message directories, which have no summary yet
+    private List<ID> pendingList = null;
 
     // "/sdcard/chat.dim.sechat/dkd/*"
     private static String getMsgPath() {
         return root + separator + "dkd";
     }
 
-    private boolean scanConversations() {
+    // "/sdcard/chat.dim.sechat/dkd/conversations.js"
+    private static String getSummaryFilePath() {
+        return getMsgPath() + separator + "conversations.js";
+    }
+
+    private boolean loadConversations() {
         assert conversationList == null;
         conversationList = new ArrayList<>();
-        // scan 'message.js' in sub dirs of 'dkd'
+        summaries = new HashMap<>();
+        if (loadSummaries()) {
+            // sort with last message's time
+            sortConversations();
+            return true;
+        }
+        // summary index not found, build it from message directories
+        if (scanConversations()) {
+            pendingList = new ArrayList<>(conversationList);
+            return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean loadSummaries() {
+        String path = getSummaryFilePath();
+        StorageWriter.getInstance().flush(path);
+        if (!exists(path)) {
+            return false;
+        }
+        List<Object> array;
+        try {
+            array = (List<Object>) loadJSON(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (array == null) {
+            return false;
+        }
+        Map<String, Object> info;
+        ID identifier;
+        for (Object item : array) {
+            info = (Map<String, Object>) item;
+            identifier = IDPool.getInstance().getID(info.get("ID"));
+            if (identifier == null || summaries.containsKey(identifier)) {
+                continue;
+            }
+            conversationList.add(identifier);
+            summaries.put(identifier, new HashMap<>(info));
+        }
+        return true;
+    }
+
+    private boolean saveSummaries() {
+        List<Object> array = new ArrayList<>();
+        for (ID identifier : conversationList) {
+            array.add(new HashMap<>(summaries.get(identifier)));
+        }
+        return StorageWriter.getInstance().writeJSON(array, getSummaryFilePath());
+    }
+
+    private boolean scanConversations() {
+        // scan message logs (or 'messages.js') in sub dirs of 'dkd'
         String path = getMsgPath();
         File dir = new File(path);
         if (!dir.exists() || !dir.isDirectory()) {
@@ -58,14 +129,16 @@ public class ConversationTable extends ExternalStorage {
         }
         Facebook facebook = Facebook.getInstance();
         ID identifier;
+        Map<String, Object> info;
         for (File file : items) {
             if (!file.isDirectory()) {
                 continue;
             }
-            if (!(new File(file.getPath(), "messages.js")).exists()) {
+            if (!MessageLog.exists(file.getPath())
+                    && !(new File(file.getPath(), "messages.js")).exists()) {
                 continue;
             }
-            identifier = ID.getInstance(file.getName());
+            identifier = IDPool.getInstance().getID(file.getName());
             identifier = facebook.getID(identifier.address);
             if (identifier == null) {
                 //throw new NullPointerException("failed to get ID with name: " + file.getName());
@@ -73,37 +146,213 @@ public class ConversationTable extends ExternalStorage {
                 // FIXME: meta not found?
                 continue;
             }
+            info = new HashMap<>();
+            info.put("ID", identifier.toString());
             conversationList.add(identifier);
+            summaries.put(identifier, info);
         }
-        // sort with last message's time
-        sortConversations();
         return true;
     }
 
     private void sortConversations() {
-        // TODO: get last time of each conversations and sort
+        // only for loading, the list will be kept in order by 'updateConversation()'
+        Comparator<ID> comparator = new Comparator<ID>() {
+            @Override
+            public int compare(ID id1, ID id2) {
+                long time1 = getTimestamp(id1);
+                long time2 = getTimestamp(id2);
+                return time1 > time2 ? -1 : (time1 < time2 ? 1 : 0);
+            }
+        };
+        Collections.sort(conversationList, comparator);
+    }
+
+    private long getTimestamp(ID identifier) {
+        Map<String, Object> info = summaries.get(identifier);
+        Object time = info == null ? null : info.get("time");
+        if (time == null) {
+            return 0;
+        }
+        return ((Number) time).longValue();
+    }
+
+    // binary search the position for a conversation with this timestamp
+    private int indexForTimestamp(long timestamp) {
+        int low = 0, high = conversationList.size();
+        int mid;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (getTimestamp(conversationList.get(mid)) > timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private boolean isReady() {
+        return conversationList != null || loadConversations();
     }
 
     //---- conversations
 
-    public int numberOfConversations() {
-        if (conversationList == null && ! scanConversations()) {
+    public synchronized int numberOfConversations() {
+        if (!isReady()) {
             return 0;
         }
         return conversationList.size();
     }
 
-    public ID conversationAtIndex(int index) {
+    public synchronized ID conversationAtIndex(int index) {
         return conversationList.get(index);
     }
 
-    public boolean removeConversationAtIndex(int index) {
+    public synchronized boolean removeConversationAtIndex(int index) {
         ID identifier = conversationList.get(index);
         return removeConversation(identifier);
     }
 
-    public boolean removeConversation(ID identifier) {
-        // TODO: remove '{address}/messages.js'
-        return conversationList.remove(identifier);
+    public synchronized boolean removeConversation(ID identifier) {
+        if (!isReady() || !conversationList.remove(identifier)) {
+            return false;
+        }
+        summaries.remove(identifier);
+        return saveSummaries();
+    }
+
+    /**
+     *  Get conversations scanned from message directories without summary,
+     *  the caller should build summaries for them with 'updateConversation()'
+     *
+     * @return conversation IDs (only once)
+     */
+    public synchronized List<ID> pendingConversations() {
+        if (!isReady()) {
+            return null;
+        }
+        List<ID> array = pendingList;
+        pendingList = null;
+        return array;
+    }
+
+    //---- summary
+
+    /**
+     *  Update conversation summary and move it to the right position
+     *
+     * @param identifier - conversation ID
+     * @param time - last message time
+     * @param text - last visible message text (null to keep the old one, empty to clear it)
+     * @return true on success
+     */
+    public synchronized boolean updateConversation(ID identifier, Date time, String text) {
+        return updateConversation(identifier, time, text, 0);
+    }
+
+    /**
+     *  Update conversation summary and count the new received messages
+     *
+     * @param identifier - conversation ID
+     * @param time - last message time
+     * @param text - last visible message text (null to keep the old one, empty to clear it)
+     * @param unread - count of new unread messages
+     * @return true on success
+     */
+    public synchronized boolean updateConversation(ID identifier, Date time, String text, int unread) {
+        if (!isReady()) {
+            // no conversation yet
+            conversationList = new ArrayList<>();
+            summaries = new HashMap<>();
+        }
+        Map<String, Object> info = summaries.get(identifier);
+        if (info == null) {
+            info = new HashMap<>();
+            info.put("ID", identifier.toString());
+        } else {
+            conversationList.remove(identifier);
+        }
+        long timestamp = time == null ? 0 : time.getTime() / 1000;
+        if (timestamp < getTimestamp(identifier)) {
+            // older message, keep the last time and text
+            timestamp = getTimestamp(identifier);
+        } else if (text != null) {
+            info.put("text", text);
+        }
+        info.put("time", timestamp);
+        if (unread > 0) {
+            info.put("unread", getUnreadCount(info) + unread);
+        }
+        // insert before the conversations with the same time
+        conversationList.add(indexForTimestamp(timestamp), identifier);
+        summaries.put(identifier, info);
+        return saveSummaries();
+    }
+
+    /**
+     *  Refresh conversation summary with the last message in the log
+     *  (after messages removed, the text is replaced even if the time is older)
+     *
+     * @param identifier - conversation ID
+     * @param time - last message time
+     * @param text - last visible message text (empty to clear it)
+     * @return true on success
+     */
+    public synchronized boolean refreshConversation(ID identifier, Date time, String text) {
+        if (!updateConversation(identifier, time, null, 0)) {
+            return false;
+        }
+        summaries.get(identifier).put("text", text);
+        return saveSummaries();
+    }
+
+    public synchronized Date getLastTime(ID identifier) {
+        if (!isReady()) {
+            return null;
+        }
+        Map<String, Object> info = summaries.get(identifier);
+        Object time = info == null ? null : info.get("time");
+        if (time == null) {
+            return null;
+        }
+        return new Date(((Number) time).longValue() * 1000);
+    }
+
+    private static int getUnreadCount(Map<String, Object> info) {
+        Object count = info == null ? null : info.get("unread");
+        return count == null ? 0 : ((Number) count).intValue();
+    }
+
+    public synchronized int getUnreadCount(ID identifier) {
+        if (!isReady()) {
+            return 0;
+        }
+        return getUnreadCount(summaries.get(identifier));
+    }
+
+    /**
+     *  Clear unread count of conversation
+     *
+     * @param identifier - conversation ID
+     * @return false on not changed
+     */
+    public synchronized boolean markRead(ID identifier) {
+        if (!isReady()) {
+            return false;
+        }
+        Map<String, Object> info = summaries.get(identifier);
+        if (getUnreadCount(info) == 0) {
+            return false;
+        }
+        info.remove("unread");
+        return saveSummaries();
+    }
+
+    public synchronized String getLastText(ID identifier) {
+        if (!isReady()) {
+            return null;
+        }
+        Map<String, Object> info = summaries.get(identifier);
+        return info == null ? null : (String) info.get("text");
     }
 }
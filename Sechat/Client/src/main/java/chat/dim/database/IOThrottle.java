@@ -0,0 +1,100 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+/**
+ *  I/O budget for background jobs
+ *
+ *  The job reports the bytes it read/wrote, and sleeps when running faster
+ *  than the rate, so it never competes with the foreground for the storage.
+ *  It can be cancelled (e.g. the app becomes active again) and the job
+ *  should stop as soon as possible.
+ */
+public class IOThrottle {
+
+    private final long bytesPerSecond;
+    private final long start;
+
+    private long total = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     *  Create throttle
+     *
+     * @param bytesPerSecond - max rate (0 for unlimited)
+     */
+    public IOThrottle(long bytesPerSecond) {
+        super();
+        this.bytesPerSecond = bytesPerSecond;
+        this.start = System.currentTimeMillis();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     *  Get bytes processed
+     *
+     * @return total bytes
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     *  Account the bytes processed, and wait if too fast
+     *
+     * @param bytes - data length read/written
+     * @return false on cancelled
+     */
+    public boolean acquire(long bytes) {
+        long delay;
+        synchronized (this) {
+            total += bytes;
+            if (bytesPerSecond <= 0) {
+                return !cancelled;
+            }
+            delay = total * 1000 / bytesPerSecond - (System.currentTimeMillis() - start);
+        }
+        // sleep in short steps to stop quickly when cancelled
+        long until = System.currentTimeMillis() + delay;
+        while (!cancelled && delay > 0) {
+            try {
+                Thread.sleep(Math.min(delay, 100));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                cancelled = true;
+            }
+            delay = until - System.currentTimeMillis();
+        }
+        return !cancelled;
+    }
+}
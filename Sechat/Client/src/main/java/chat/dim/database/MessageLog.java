@@ -0,0 +1,719 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Append-only message log for one conversation
+ *
+ *      "/sdcard/chat.dim.sechat/dkd/{address}/messages.{N}.log"
+ *      "/sdcard/chat.dim.sechat/dkd/{address}/messages.idx"
+ *
+ *  Each segment is a sequence of records:
+ *
+ *      +------+----------+-------------------+
+ *      | type | length   | payload           |
+ *      +------+----------+-------------------+
+ *        1B     4B (BE)    {length} bytes
+ *
+ *  New records are always appended to the last segment, when it grows
+ *  over SEGMENT_SIZE a new segment will be started.
+ *
+ *  The index file holds the location of each message record
+ *  (4 bytes segment + 4 bytes offset), so the message count is known
+ *  without reading the segments, and any message can be read directly.
+ *
+ *  Appended records are buffered in memory and written by the StorageWriter
+ *  thread, so a burst of messages costs only a few disk writes.
+ *  All writes go through the storage journal at explicit offsets, so a batch
+ *  interrupted by crash will be completed by replaying the journal.
+ *
+ *  Segments no longer written can be compressed into "messages.{N}.z"
+ *  (see CompressedSegment), records in them are still readable directly.
+ */
+class MessageLog {
+
+    static final byte MESSAGE = 0x01;    // payload: JsON of an instant message
+    static final byte TOMBSTONE = 0x02;  // payload: sn (8B) + flag (1B) of removed message
+
+    static final int SEGMENT_SIZE = 1024 * 1024;  // roll segment at 1MB
+
+    private static final int HEAD_SIZE = 5;
+    private static final int ENTRY_SIZE = 8;
+
+    private final File directory;
+
+    private int lastSegment = -1;  // index of the writing segment
+    private long lastLength = 0;   // data length of the writing segment
+
+    // locations of message records: (segment << 32) | offset
+    private long[] index = null;
+    private int count = 0;
+
+    // records appended but not written yet
+    private final List<Record> pendingRecords = new ArrayList<>();
+    // payloads of message records from position 'flushed'
+    private final List<byte[]> pendingMessages = new ArrayList<>();
+    private int flushed = 0;
+    // increased when the log is cleared, to ignore the commits before
+    private int epoch = 0;
+
+    private static class Record {
+        final int segment;
+        final long offset;
+        final byte[] data;
+
+        Record(int segment, long offset, byte[] data) {
+            this.segment = segment;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    // opened compressed segments
+    private final Map<Integer, CompressedSegment> compressedSegments = new HashMap<>();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            writeRecords();
+        }
+    };
+
+    MessageLog(String path) {
+        super();
+        directory = new File(path);
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(directory, "messages." + segment + ".log");
+    }
+
+    private File getCompressedFile(int segment) {
+        return new File(directory, "messages." + segment + ".z");
+    }
+
+    private File getIndexFile() {
+        return new File(directory, "messages.idx");
+    }
+
+    /**
+     *  Check whether any segment exists in this directory
+     *
+     * @param path - conversation directory
+     * @return true on log found
+     */
+    static boolean exists(String path) {
+        return new File(path, "messages.0.log").exists()
+                || new File(path, "messages.0.z").exists();
+    }
+
+    private boolean segmentExists(int segment) {
+        return getSegmentFile(segment).exists() || getCompressedFile(segment).exists();
+    }
+
+    // get compressed segment, null for raw segment
+    private CompressedSegment getCompressedSegment(int segment) {
+        CompressedSegment cs = compressedSegments.get(segment);
+        if (cs == null) {
+            File file = getCompressedFile(segment);
+            if (!file.exists()) {
+                return null;
+            }
+            cs = new CompressedSegment(file);
+            compressedSegments.put(segment, cs);
+        }
+        return cs;
+    }
+
+    private void open() throws IOException {
+        if (index != null) {
+            return;
+        }
+        // complete the writes interrupted last time
+        StorageWriter.getInstance().recover();
+        int segment = 0;
+        while (segmentExists(segment + 1)) {
+            ++segment;
+        }
+        lastSegment = segment;
+        lastLength = 0;
+        File file = getSegmentFile(segment);
+        if (!file.exists() && getCompressedFile(segment).exists()) {
+            // the last segment was compressed, write into a new one
+            lastSegment = segment + 1;
+        } else if (file.exists()) {
+            // drop the incomplete record written before crash
+            byte[] data = readFile(file, 0);
+            int length = scan(data, 0, null);
+            if (length < data.length) {
+                truncate(file, length);
+            }
+            lastLength = length;
+        }
+        loadIndex();
+    }
+
+    private void loadIndex() throws IOException {
+        index = new long[256];
+        count = 0;
+        File file = getIndexFile();
+        if (file.exists()) {
+            byte[] data = readFile(file, 0);
+            int total = data.length / ENTRY_SIZE;
+            ensureCapacity(total);
+            for (int pos = 0; pos < total; ++pos) {
+                index[pos] = location(readInt(data, pos * ENTRY_SIZE),
+                        readInt(data, pos * ENTRY_SIZE + 4));
+            }
+            count = total;
+            // drop entries pointing to lost records
+            while (count > 0 && !isValid(index[count - 1])) {
+                --count;
+            }
+            if (count * ENTRY_SIZE != data.length) {
+                truncate(file, count * ENTRY_SIZE);
+            }
+        }
+        // catch up with the records not indexed yet
+        int segment = 0;
+        long offset = 0;
+        if (count > 0) {
+            segment = segmentOf(index[count - 1]);
+            offset = offsetOf(index[count - 1]);
+            offset += HEAD_SIZE + readPayloadLength(segment, offset);
+        }
+        List<Long> locations = new ArrayList<>();
+        for (; segment <= lastSegment; ++segment, offset = 0) {
+            if (segmentExists(segment)) {
+                scan(readSegment(segment, offset), segment, offset, locations);
+            }
+        }
+        if (locations.size() > 0) {
+            addIndex(locations);
+            writeIndex(count - locations.size(), count);
+        }
+        flushed = count;
+    }
+
+    private boolean isValid(long location) throws IOException {
+        int segment = segmentOf(location);
+        if (segment > lastSegment) {
+            return false;
+        } else if (segment == lastSegment) {
+            return offsetOf(location) < lastLength;
+        } else {
+            return offsetOf(location) < segmentLength(segment);
+        }
+    }
+
+    private long segmentLength(int segment) throws IOException {
+        CompressedSegment cs = getCompressedSegment(segment);
+        if (cs != null) {
+            return cs.length();
+        }
+        return getSegmentFile(segment).length();
+    }
+
+    // read segment data from offset to the end
+    private byte[] readSegment(int segment, long offset) throws IOException {
+        CompressedSegment cs = getCompressedSegment(segment);
+        if (cs != null) {
+            return cs.read(offset, -1);
+        }
+        return readFile(getSegmentFile(segment), offset);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > index.length) {
+            long[] array = new long[Math.max(capacity, index.length * 2)];
+            System.arraycopy(index, 0, array, 0, count);
+            index = array;
+        }
+    }
+
+    private void addIndex(List<Long> locations) {
+        ensureCapacity(count + locations.size());
+        for (long loc : locations) {
+            index[count++] = loc;
+        }
+    }
+
+    // append index entries in range [from, to) into the index file
+    private void writeIndex(int from, int to) {
+        byte[] data = new byte[(to - from) * ENTRY_SIZE];
+        int pos = 0;
+        for (int i = from; i < to; ++i) {
+            writeInt(segmentOf(index[i]), data, pos);
+            writeInt((int) offsetOf(index[i]), data, pos + 4);
+            pos += ENTRY_SIZE;
+        }
+        StorageWriter.getInstance().write(getIndexFile().getPath(), (long) from * ENTRY_SIZE, data);
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static long offsetOf(long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    //-------- reading
+
+    private static byte[] readFile(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) (raf.length() - offset)];
+            raf.seek(offset);
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int readPayloadLength(int segment, long offset) throws IOException {
+        CompressedSegment cs = getCompressedSegment(segment);
+        if (cs != null) {
+            return readInt(cs.read(offset + 1, 4), 0);
+        }
+        RandomAccessFile raf = new RandomAccessFile(getSegmentFile(segment), "r");
+        try {
+            raf.seek(offset + 1);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    static void writeInt(int value, byte[] data, int offset) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     *  Parse records in segment data
+     *
+     * @param data - segment data
+     * @param segment - segment index
+     * @param start - segment offset of the data
+     * @param locations - locations output (of type MESSAGE)
+     * @return length of the complete records
+     */
+    private static int scan(byte[] data, int segment, long start, List<Long> locations) {
+        int offset = 0;
+        int length;
+        while (offset + HEAD_SIZE <= data.length) {
+            length = readInt(data, offset + 1);
+            if (length < 0 || offset + HEAD_SIZE + length > data.length) {
+                // incomplete record
+                break;
+            }
+            if (locations != null && data[offset] == MESSAGE) {
+                locations.add(location(segment, start + offset));
+            }
+            offset += HEAD_SIZE + length;
+        }
+        return offset;
+    }
+
+    private static int scan(byte[] data, int segment, List<Long> locations) {
+        return scan(data, segment, 0, locations);
+    }
+
+    /**
+     *  Get count of message records
+     *
+     * @return messages count
+     */
+    synchronized int count() throws IOException {
+        open();
+        return count;
+    }
+
+    /**
+     *  Read message records in range
+     *
+     * @param from - start position
+     * @param length - max count of records
+     * @return payloads of message records
+     */
+    synchronized List<byte[]> read(int from, int length) throws IOException {
+        open();
+        int end = Math.min(from + length, count);
+        List<byte[]> payloads = new ArrayList<>();
+        RandomAccessFile raf = null;
+        int current = -1;
+        int segment;
+        byte[] payload;
+        CompressedSegment cs;
+        long offset;
+        try {
+            for (int pos = Math.max(from, 0); pos < end; ++pos) {
+                if (pos >= flushed) {
+                    // not written yet
+                    payloads.add(pendingMessages.get(pos - flushed));
+                    continue;
+                }
+                segment = segmentOf(index[pos]);
+                cs = getCompressedSegment(segment);
+                if (cs != null) {
+                    offset = offsetOf(index[pos]);
+                    payload = cs.read(offset + HEAD_SIZE, readInt(cs.read(offset + 1, 4), 0));
+                    payloads.add(payload);
+                    continue;
+                }
+                if (segment != current) {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                    raf = new RandomAccessFile(getSegmentFile(segment), "r");
+                    current = segment;
+                }
+                raf.seek(offsetOf(index[pos]) + 1);
+                payload = new byte[raf.readInt()];
+                raf.readFully(payload);
+                payloads.add(payload);
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        return payloads;
+    }
+
+    //-------- writing
+
+    private static byte[] pack(byte type, byte[] payload) {
+        byte[] record = new byte[HEAD_SIZE + payload.length];
+        record[0] = type;
+        writeInt(payload.length, record, 1);
+        System.arraycopy(payload, 0, record, HEAD_SIZE, payload.length);
+        return record;
+    }
+
+    /**
+     *  Append records to the last segment (buffered until flush)
+     *
+     * @param type - record type
+     * @param payloads - record data
+     * @return true on success
+     */
+    synchronized boolean append(byte type, List<byte[]> payloads) throws IOException {
+        open();
+        List<Long> locations = new ArrayList<>();
+        byte[] record;
+        for (byte[] item : payloads) {
+            if (lastLength >= SEGMENT_SIZE) {
+                // roll to a new segment
+                ++lastSegment;
+                lastLength = 0;
+            }
+            if (type == MESSAGE) {
+                locations.add(location(lastSegment, lastLength));
+                pendingMessages.add(item);
+            }
+            record = pack(type, item);
+            pendingRecords.add(new Record(lastSegment, lastLength, record));
+            lastLength += record.length;
+        }
+        addIndex(locations);
+        StorageWriter.getInstance().post(directory.getPath(), flushTask);
+        return true;
+    }
+
+    /**
+     *  Write the buffered records and their index entries now
+     *  (do not call it while holding the lock of this log)
+     *
+     * @return true on success
+     */
+    boolean flush() throws IOException {
+        StorageWriter.getInstance().flush(directory.getPath());
+        return true;
+    }
+
+    // submit the buffered records to the storage journal (called by storage thread)
+    private synchronized void writeRecords() {
+        final int records = pendingRecords.size();
+        if (records == 0) {
+            return;
+        }
+        StorageWriter writer = StorageWriter.getInstance();
+        // join the records of the same segment
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Record first = null;
+        for (Record item : pendingRecords) {
+            if (first != null && item.segment != first.segment) {
+                writer.write(getSegmentFile(first.segment).getPath(), first.offset, buffer.toByteArray());
+                buffer.reset();
+                first = null;
+            }
+            if (first == null) {
+                first = item;
+            }
+            buffer.write(item.data, 0, item.data.length);
+        }
+        writer.write(getSegmentFile(first.segment).getPath(), first.offset, buffer.toByteArray());
+        // segments first, so the index never points to lost records
+        final int end = count;
+        if (flushed < end) {
+            writeIndex(flushed, end);
+        }
+        final int current = epoch;
+        writer.afterCommit(new StorageWriter.CommitCallback() {
+            @Override
+            public void onCommitted() {
+                committed(current, records, end);
+            }
+
+            @Override
+            public void onFailed() {
+                failed(current);
+            }
+        });
+    }
+
+    // the records are readable from files now, release the buffer
+    private synchronized void committed(int oldEpoch, int records, int end) {
+        if (oldEpoch != epoch) {
+            // cleared
+            return;
+        }
+        pendingRecords.subList(0, records).clear();
+        pendingMessages.subList(0, end - flushed).clear();
+        flushed = end;
+    }
+
+    // the records are still in buffer, write them all again later
+    private synchronized void failed(int oldEpoch) {
+        if (oldEpoch != epoch) {
+            return;
+        }
+        StorageWriter.getInstance().post(directory.getPath(), flushTask);
+    }
+
+    synchronized boolean append(byte type, byte[] payload) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        payloads.add(payload);
+        return append(type, payloads);
+    }
+
+    /**
+     *  Compress the segments no longer written
+     *
+     * @param all - true to compress the last segment too (cold conversation),
+     *              new records will be written into a new segment
+     * @return bytes saved
+     */
+    long compress(boolean all) throws IOException {
+        if (all) {
+            flush();
+        }
+        List<String> removing = new ArrayList<>();
+        long saved = compress(all, removing);
+        // the compressed data is readable, remove the raw segments
+        StorageWriter writer = StorageWriter.getInstance();
+        for (String path : removing) {
+            writer.remove(path);
+        }
+        return saved;
+    }
+
+    private synchronized long compress(boolean all, List<String> removing) throws IOException {
+        open();
+        // segments with records not written yet cannot be compressed
+        int end = pendingRecords.size() == 0 ? lastSegment : pendingRecords.get(0).segment - 1;
+        if (!all) {
+            end = Math.min(end, lastSegment - 1);
+        }
+        long saved = 0;
+        File file;
+        byte[] data;
+        for (int segment = 0; segment <= lastSegment; ++segment) {
+            file = getSegmentFile(segment);
+            if (!file.exists()) {
+                continue;
+            }
+            if (getCompressedFile(segment).exists()) {
+                // compressed before, but the raw file was not removed
+                removing.add(file.getPath());
+                continue;
+            }
+            if (segment > end || (segment == lastSegment && lastLength == 0)) {
+                // hot segment (or empty)
+                continue;
+            }
+            data = readFile(file, 0);
+            saved += data.length - CompressedSegment.compress(data, getCompressedFile(segment));
+            removing.add(file.getPath());
+            if (segment == lastSegment) {
+                ++lastSegment;
+                lastLength = 0;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     *  Read all records of the type (scanning all segments)
+     *
+     * @param type - record type
+     * @return payloads
+     */
+    synchronized List<byte[]> readAll(byte type) throws IOException {
+        open();
+        // the records from here may be written already, but they are still in buffer
+        Map<Integer, Long> buffered = new HashMap<>();
+        for (Record item : pendingRecords) {
+            if (!buffered.containsKey(item.segment)) {
+                buffered.put(item.segment, item.offset);
+            }
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        byte[] data;
+        int offset, length;
+        long end;
+        for (int segment = 0; segment <= lastSegment; ++segment) {
+            if (!segmentExists(segment)) {
+                continue;
+            }
+            data = readSegment(segment, 0);
+            end = buffered.containsKey(segment) ? Math.min(buffered.get(segment), data.length) : data.length;
+            for (offset = 0; offset + HEAD_SIZE <= end; offset += HEAD_SIZE + length) {
+                length = readInt(data, offset + 1);
+                if (length < 0 || offset + HEAD_SIZE + length > end) {
+                    break;
+                }
+                if (data[offset] == type) {
+                    byte[] payload = new byte[length];
+                    System.arraycopy(data, offset + HEAD_SIZE, payload, 0, length);
+                    payloads.add(payload);
+                }
+            }
+        }
+        // records not written yet
+        for (Record item : pendingRecords) {
+            if (item.data[0] == type) {
+                byte[] payload = new byte[item.data.length - HEAD_SIZE];
+                System.arraycopy(item.data, HEAD_SIZE, payload, 0, payload.length);
+                payloads.add(payload);
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     *  Create an empty log
+     *
+     * @return true on success
+     */
+    boolean create() throws IOException {
+        File file = getLastSegmentFile();
+        if (!file.exists()) {
+            StorageWriter.getInstance().write(file.getPath(), 0, new byte[0]);
+        }
+        return true;
+    }
+
+    private synchronized File getLastSegmentFile() throws IOException {
+        open();
+        return getSegmentFile(lastSegment);
+    }
+
+    /**
+     *  Remove all segments and the index
+     *  (do not call it while holding the lock of this log)
+     *
+     * @return false on error
+     */
+    boolean clear() {
+        StorageWriter writer = StorageWriter.getInstance();
+        for (String path : reset()) {
+            writer.remove(path);
+        }
+        // the removing is queued, wait for it before the files are read again
+        writer.flush(directory.getPath());
+        return true;
+    }
+
+    // drop all data in memory, return the files to be removed
+    private synchronized List<String> reset() {
+        // including the segments not written yet (still in the running batch)
+        int last = lastSegment;
+        while (segmentExists(last + 1)) {
+            ++last;
+        }
+        List<String> files = new ArrayList<>();
+        for (int segment = 0; segment <= last; ++segment) {
+            files.add(getSegmentFile(segment).getPath());
+            files.add(getCompressedFile(segment).getPath());
+        }
+        files.add(getIndexFile().getPath());
+        compressedSegments.clear();
+        lastSegment = -1;
+        lastLength = 0;
+        index = null;
+        count = 0;
+        pendingRecords.clear();
+        pendingMessages.clear();
+        flushed = 0;
+        ++epoch;
+        return files;
+    }
+}
@@ -0,0 +1,399 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import chat.dim.utils.LongIntMap;
+
+/**
+ *  Serial numbers and delivery states of messages in one conversation
+ *
+ *      "/sdcard/chat.dim.sechat/dkd/{address}/messages.sn"
+ *
+ *  A fixed-size entry for each message position:
+ *
+ *      +-----------------+-------+
+ *      | sn (8B)         | state |
+ *      +-----------------+-------+
+ *
+ *  so the index (sn => position) can be built without decoding messages,
+ *  and a state can be updated in place.
+ *
+ *  The state byte holds the delivery state (low 4 bits) and the tombstone
+ *  flags, the removed positions are kept in a sorted array to map the
+ *  visible index (without removed messages) to the message position.
+ */
+class MessageStates {
+
+    private static final int ENTRY_SIZE = 9;
+
+    // tombstone flags in state byte
+    static final byte REMOVED = 0x10;
+    static final byte WITHDRAWN = 0x20;
+
+    private static final int DELIVERY_MASK = 0x0F;
+
+    private final File file;
+
+    private long[] serialNumbers = null;
+    private byte[] states = null;
+    private int count = 0;
+
+    // sn => position
+    private LongIntMap positions = null;
+
+    // removed positions (ascending)
+    private int[] removed = null;
+    private int removedCount = 0;
+
+    // positions changed but not written yet
+    private final BitSet dirty = new BitSet();
+    // true to rewrite the whole file (after truncating)
+    private boolean rewrite = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            writeEntries();
+        }
+    };
+
+    MessageStates(String path) {
+        super();
+        file = new File(path, "messages.sn");
+    }
+
+    private void open() throws IOException {
+        if (positions != null) {
+            return;
+        }
+        StorageWriter.getInstance().recover();
+        byte[] data;
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                data = new byte[(int) raf.length()];
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+        } else {
+            data = new byte[0];
+        }
+        int total = data.length / ENTRY_SIZE;
+        serialNumbers = new long[Math.max(total, 64)];
+        states = new byte[serialNumbers.length];
+        positions = new LongIntMap(total);
+        removed = new int[16];
+        removedCount = 0;
+        count = 0;
+        int offset;
+        for (int pos = 0; pos < total; ++pos) {
+            offset = pos * ENTRY_SIZE;
+            cache(pos, ((long) MessageLog.readInt(data, offset) << 32)
+                    | (MessageLog.readInt(data, offset + 4) & 0xFFFFFFFFL), data[offset + 8]);
+        }
+    }
+
+    private void cache(int position, long sn, byte state) {
+        if (position >= serialNumbers.length) {
+            int length = Math.max(position + 1, serialNumbers.length * 2);
+            serialNumbers = Arrays.copyOf(serialNumbers, length);
+            states = Arrays.copyOf(states, length);
+        }
+        serialNumbers[position] = sn;
+        states[position] = state;
+        if (sn != 0) {
+            positions.put(sn, position);
+        }
+        count = Math.max(count, position + 1);
+        if ((state & (REMOVED | WITHDRAWN)) != 0) {
+            addRemoved(position);
+        }
+    }
+
+    // count of removed positions before this one
+    private int removedBefore(int position) {
+        int index = Arrays.binarySearch(removed, 0, removedCount, position);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    private void addRemoved(int position) {
+        int index = Arrays.binarySearch(removed, 0, removedCount, position);
+        if (index >= 0) {
+            return;
+        }
+        index = -index - 1;
+        if (removedCount == removed.length) {
+            removed = Arrays.copyOf(removed, removedCount * 2);
+        }
+        System.arraycopy(removed, index, removed, index + 1, removedCount - index);
+        removed[index] = position;
+        ++removedCount;
+    }
+
+    private void forget(int position) {
+        long sn = serialNumbers[position];
+        if (sn != 0 && positions.get(sn) == position) {
+            positions.remove(sn);
+        }
+    }
+
+    private void markDirty(int position) {
+        dirty.set(position);
+        StorageWriter.getInstance().post(file.getPath(), flushTask);
+    }
+
+    // submit changed entries to the storage journal (called by storage thread)
+    private synchronized void writeEntries() {
+        StorageWriter writer = StorageWriter.getInstance();
+        final boolean rewriting = rewrite;
+        final BitSet written = (BitSet) dirty.clone();
+        if (rewrite) {
+            writer.put(file.getPath(), pack(0, count));
+            rewrite = false;
+        } else {
+            int from = dirty.nextSetBit(0);
+            int to;
+            while (from >= 0 && from < count) {
+                to = Math.min(dirty.nextClearBit(from), count);
+                writer.write(file.getPath(), (long) from * ENTRY_SIZE, pack(from, to));
+                from = dirty.nextSetBit(to);
+            }
+        }
+        dirty.clear();
+        writer.afterCommit(new StorageWriter.CommitCallback() {
+            @Override
+            public void onCommitted() {
+                // the entries are always in memory
+            }
+
+            @Override
+            public void onFailed() {
+                failed(rewriting, written);
+            }
+        });
+    }
+
+    // mark the entries dirty again, write them later
+    private synchronized void failed(boolean rewriting, BitSet written) {
+        rewrite |= rewriting;
+        dirty.or(written);
+        StorageWriter.getInstance().post(file.getPath(), flushTask);
+    }
+
+    private byte[] pack(int from, int to) {
+        byte[] data = new byte[(to - from) * ENTRY_SIZE];
+        int offset = 0;
+        for (int pos = from; pos < to; ++pos) {
+            MessageLog.writeInt((int) (serialNumbers[pos] >>> 32), data, offset);
+            MessageLog.writeInt((int) serialNumbers[pos], data, offset + 4);
+            data[offset + 8] = states[pos];
+            offset += ENTRY_SIZE;
+        }
+        return data;
+    }
+
+    /**
+     *  Write changed entries now
+     *  (do not call it while holding the lock of this object)
+     */
+    void flush() {
+        StorageWriter.getInstance().flush(file.getPath());
+    }
+
+    /**
+     *  Get count of entries
+     *
+     * @return count of message positions recorded
+     */
+    synchronized int count() throws IOException {
+        open();
+        return count;
+    }
+
+    /**
+     *  Record serial number of the message at position
+     *
+     * @param position - message position
+     * @param sn - serial number of message content
+     */
+    synchronized void add(int position, long sn) throws IOException {
+        open();
+        cache(position, sn, (byte) 0);
+        markDirty(position);
+    }
+
+    /**
+     *  Get message position with serial number
+     *
+     * @param sn - serial number of message content
+     * @return position, -1 on not found
+     */
+    synchronized int positionOf(long sn) throws IOException {
+        open();
+        return positions.get(sn);
+    }
+
+    synchronized long getSerialNumber(int position) throws IOException {
+        open();
+        return position < count ? serialNumbers[position] : 0;
+    }
+
+    /**
+     *  Get delivery state of message
+     *
+     * @param position - message position
+     * @return delivery state (without tombstone flags)
+     */
+    synchronized byte getState(int position) throws IOException {
+        open();
+        return position < count ? (byte) (states[position] & DELIVERY_MASK) : 0;
+    }
+
+    /**
+     *  Update message state, the state never goes back
+     *
+     * @param position - message position
+     * @param state - new state
+     * @return false on not changed
+     */
+    synchronized boolean setState(int position, byte state) throws IOException {
+        open();
+        if (position >= count || (states[position] & DELIVERY_MASK) >= state) {
+            return false;
+        }
+        states[position] = (byte) ((states[position] & ~DELIVERY_MASK) | state);
+        markDirty(position);
+        return true;
+    }
+
+    //-------- tombstones
+
+    /**
+     *  Mark message removed (or withdrawn), the position will not be reused
+     *
+     * @param position - message position
+     * @param flag - REMOVED or WITHDRAWN
+     * @return false on removed already
+     */
+    synchronized boolean markRemoved(int position, byte flag) throws IOException {
+        open();
+        if (position >= count || isRemoved(position)) {
+            return false;
+        }
+        states[position] |= flag;
+        addRemoved(position);
+        markDirty(position);
+        return true;
+    }
+
+    synchronized boolean isRemoved(int position) throws IOException {
+        open();
+        return position < count && (states[position] & (REMOVED | WITHDRAWN)) != 0;
+    }
+
+    /**
+     *  Get tombstone flags of message
+     *
+     * @param position - message position
+     * @return REMOVED, WITHDRAWN; 0 for not removed
+     */
+    synchronized byte getFlags(int position) throws IOException {
+        open();
+        return position < count ? (byte) (states[position] & (REMOVED | WITHDRAWN)) : 0;
+    }
+
+    /**
+     *  Get count of messages not removed
+     *
+     * @return visible messages count
+     */
+    synchronized int visibleCount() throws IOException {
+        open();
+        return count - removedCount;
+    }
+
+    /**
+     *  Get message position of the visible index
+     *
+     * @param index - index without removed messages
+     * @return message position
+     */
+    synchronized int positionAt(int index) throws IOException {
+        open();
+        // find the first k that (removed[k] - k > index), then position = index + k
+        int low = 0, high = removedCount;
+        int mid;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (removed[mid] - mid <= index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return index + low;
+    }
+
+    /**
+     *  Get visible index of the message position
+     *
+     * @param position - message position (not removed)
+     * @return index without removed messages
+     */
+    synchronized int indexOf(int position) throws IOException {
+        open();
+        return position - removedBefore(position);
+    }
+
+    /**
+     *  Drop entries from position (the messages were lost)
+     *
+     * @param length - count of entries to keep
+     */
+    synchronized void truncate(int length) throws IOException {
+        open();
+        while (count > length) {
+            forget(--count);
+        }
+        removedCount = removedBefore(count);
+        rewrite = true;
+        markDirty(0);
+    }
+
+    /**
+     *  Remove all entries
+     */
+    synchronized void clear() throws IOException {
+        truncate(0);
+    }
+}
@@ -25,148 +25,1026 @@
  */
 package chat.dim.database;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import chat.dim.Content;
 import chat.dim.ID;
 import chat.dim.InstantMessage;
 import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.JSON;
 import chat.dim.model.Conversation;
+import chat.dim.protocol.NetworkType;
+import chat.dim.protocol.TextContent;
+import chat.dim.utils.IDPool;
+import chat.dim.utils.JSONReader;
+import chat.dim.utils.LRUCache;
 
 public class MessageTable extends ExternalStorage {
 
-    private Map<ID, List<InstantMessage>> chatHistory = new HashMap<>();
+    // messages in the same page will be decoded together
+    private static final int PAGE_SIZE = 32;
+    // max decoded messages kept for each conversation
+    private static final int MAX_CACHED = PAGE_SIZE * 8;
 
-    // "/sdcard/chat.dim.sechat/dkd/{address}/messages.js"
+    // default budget of decoded messages for all conversations
+    public static int CACHE_CAPACITY = 4096;
+
+    // record formats for new messages (old records are readable in any format)
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    // message states (updated by receipts, never go back)
+    public static final byte STATE_DELIVERED = 1;  // received by station
+    public static final byte STATE_RECEIVED = 2;   // received by the receiver
+    public static final byte STATE_READ = 3;       // read by the receiver
+
+    private int recordFormat = FORMAT_JSON;
+
+    private final SearchTable searchTable = new SearchTable();
+    private final Object buildLock = new Object();
+
+    /**
+     *  Message log and decoded messages of one conversation
+     */
+    private static class History {
+
+        final MessageLog log;
+        final MessageStates states;
+
+        // position => decoded message
+        final Map<Integer, InstantMessage> messages;
+
+        History(MessageLog log, MessageStates states) {
+            super();
+            this.log = log;
+            this.states = states;
+            this.messages = new LinkedHashMap<Integer, InstantMessage>(PAGE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, InstantMessage> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+        }
+    }
+
+    // evicted histories, kept until their buffered records are written
+    private final Map<ID, History> retiring = new HashMap<>();
+    // conversations whose files are being replaced by compaction
+    private final Set<ID> swapping = new HashSet<>();
+    // conversations failed to migrate from the old file
+    private final Set<ID> unmigrated = new HashSet<>();
+
+    // conversation ID => history, measured by count of decoded messages
+    private LRUCache<ID, History> chatHistory = new LRUCache<ID, History>(CACHE_CAPACITY) {
+        @Override
+        protected long sizeOf(ID key, History value) {
+            return value.messages.size() + 1;
+        }
+
+        @Override
+        protected void onEvicted(ID key, History value) {
+            retire(key, value);
+        }
+    };
 
-    private static String getMsgFilePath(ID entity) {
+    // the log is written by its own task later, drop it after that
+    private void retire(final ID entity, final History history) {
+        synchronized (retiring) {
+            retiring.put(entity, history);
+        }
+        final StorageWriter writer = StorageWriter.getInstance();
+        writer.post(getMsgDirectory(entity) + separator + "retiring", new Runnable() {
+            @Override
+            public void run() {
+                writer.afterCommit(new StorageWriter.CommitCallback() {
+                    @Override
+                    public void onCommitted() {
+                        synchronized (retiring) {
+                            if (retiring.get(entity) == history) {
+                                retiring.remove(entity);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailed() {
+                        // the log is still buffering, try again after it is written
+                        synchronized (retiring) {
+                            if (retiring.get(entity) != history) {
+                                return;
+                            }
+                        }
+                        retire(entity, history);
+                    }
+                });
+            }
+        });
+    }
+
+    // "/sdcard/chat.dim.sechat/dkd/{address}"
+
+    static String getMsgDirectory(ID entity) {
         return root + separator
                 + "dkd" + separator
-                + entity.address + separator
+                + entity.address;
+    }
+
+    // "/sdcard/chat.dim.sechat/dkd/{address}/messages.js"
+
+    static String getMsgFilePath(ID entity) {
+        return getMsgDirectory(entity) + separator
                 + "messages.js";
     }
 
-    private List cacheMessages(Object array, ID entity) {
-        if (!(array instanceof List)) {
-            return null;
+    // called with the table locked
+    private History getHistory(ID entity) {
+        while (swapping.contains(entity)) {
+            // wait for compaction, other conversations are not blocked
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
-        List list = (List) array;
-        List<InstantMessage> messages = new ArrayList<>();
-        for (Object msg : list) {
-            messages.add(InstantMessage.getInstance(msg));
+        History history = chatHistory.get(entity);
+        if (history == null) {
+            synchronized (retiring) {
+                history = retiring.remove(entity);
+            }
+            if (history != null) {
+                // evicted, but the records may be not written yet
+                chatHistory.put(entity, history);
+                return history;
+            }
+            if (needsMigration(entity)) {
+                migrateInBackground(entity);
+                // check again after migrated
+                return getHistory(entity);
+            }
+            MessageLog log = new MessageLog(getMsgDirectory(entity));
+            history = new History(log, new MessageStates(getMsgDirectory(entity)));
+            syncStates(history);
+            chatHistory.put(entity, history);
         }
-        chatHistory.put(entity, messages);
-        return messages;
+        return history;
     }
 
-    private List loadMessages(ID entity) {
-        String path = getMsgFilePath(entity);
+    // record serial numbers of the messages stored before (or drop the lost ones)
+    private void syncStates(History history) {
         try {
-            Object array = loadJSON(path);
-            return cacheMessages(array, entity);
+            int count = history.log.count();
+            int recorded = history.states.count();
+            if (recorded > count) {
+                history.states.truncate(count);
+                return;
+            }
+            if (recorded == count) {
+                return;
+            }
+            List<byte[]> payloads;
+            InstantMessage iMsg;
+            for (int from = recorded; from < count; from += PAGE_SIZE) {
+                payloads = history.log.read(from, PAGE_SIZE);
+                for (int index = 0; index < payloads.size(); ++index) {
+                    iMsg = InstantMessage.getInstance(BinaryCodec.decode(payloads.get(index)));
+                    history.states.add(from + index, iMsg == null ? 0 : iMsg.content.serialNumber);
+                }
+            }
+            // tombstones of the messages recorded now
+            long sn;
+            int position;
+            for (byte[] payload : history.log.readAll(MessageLog.TOMBSTONE)) {
+                sn = ((long) MessageLog.readInt(payload, 0) << 32) | (MessageLog.readInt(payload, 4) & 0xFFFFFFFFL);
+                position = history.states.positionOf(sn);
+                if (position >= recorded) {
+                    history.states.markRemoved(position, payload[8]);
+                }
+            }
         } catch (IOException e) {
-            //e.printStackTrace();
-            return null;
+            e.printStackTrace();
         }
     }
 
-    private boolean saveMessages(ID entity) {
-        List<InstantMessage> messages = chatHistory.get(entity);
-        if (messages == null) {
+    private MessageLog getMessageLog(ID entity) {
+        return getHistory(entity).log;
+    }
+
+    private boolean needsMigration(ID entity) {
+        if (unmigrated.contains(entity) || MessageLog.exists(getMsgDirectory(entity))) {
             return false;
         }
+        return exists(getMsgFilePath(entity));
+    }
+
+    // move the old file without locking the table (the conversation is blocked until done)
+    private void migrateInBackground(final ID entity) {
+        swapping.add(entity);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean ok = false;
+                try {
+                    migrate(entity, new MessageLog(getMsgDirectory(entity)));
+                    ok = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (MessageTable.this) {
+                        if (!ok) {
+                            // don't try again until next launch
+                            unmigrated.add(entity);
+                        }
+                        swapping.remove(entity);
+                        MessageTable.this.notifyAll();
+                    }
+                }
+            }
+        }, "MigrateMessages");
+        thread.start();
+    }
+
+    /**
+     *  Move messages from the old JsON file into message log
+     *
+     * @param entity - conversation ID
+     * @param log - message log
+     */
+    private void migrate(ID entity, MessageLog log) throws IOException {
         String path = getMsgFilePath(entity);
+        // read messages one by one, and move them page by page
+        JSONReader reader = JSONReader.open(path);
+        if (reader == null) {
+            return;
+        }
+        try {
+            if (!log.create()) {
+                throw new IOException("failed to create message log: " + path);
+            }
+            List<byte[]> payloads = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JSONReader.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+                payloads.add(encode(reader.readValue()));
+                if (payloads.size() >= MAX_CACHED) {
+                    if (!log.append(MessageLog.MESSAGE, payloads) || !log.flush()) {
+                        throw new IOException("failed to migrate messages: " + path);
+                    }
+                    payloads.clear();
+                }
+            }
+            reader.endArray();
+            if (!log.append(MessageLog.MESSAGE, payloads) || !log.flush()) {
+                throw new IOException("failed to migrate messages: " + path);
+            }
+        } catch (IOException e) {
+            // drop the partial log, try again next time
+            log.clear();
+            throw e;
+        } finally {
+            reader.close();
+        }
+        delete(path);
+    }
+
+    private byte[] encode(Object msg) {
+        if (recordFormat == FORMAT_BINARY) {
+            return BinaryCodec.encode(msg);
+        }
+        return JSON.encode(msg);
+    }
+
+    // load messages in range of visible index (removed messages skipped)
+    private List<InstantMessage> loadMessages(int from, int count, ID entity) {
+        History history = getHistory(entity);
+        MessageStates states = history.states;
+        Map<Integer, InstantMessage> cache = history.messages;
+        List<InstantMessage> messages = new ArrayList<>();
         try {
-            return saveJSON(messages, path);
+            int end = Math.min(from + count, states.visibleCount());
+            if (from >= end) {
+                return messages;
+            }
+            int start = states.positionAt(from);
+            int last = states.positionAt(end - 1);
+            List<byte[]> payloads = history.log.read(start, last - start + 1);
+            int position = start;
+            InstantMessage msg;
+            for (byte[] data : payloads) {
+                if (states.isRemoved(position)) {
+                    ++position;
+                    continue;
+                }
+                msg = cache.get(position);
+                if (msg == null) {
+                    msg = InstantMessage.getInstance(BinaryCodec.decode(data));
+                    if (msg == null) {
+                        throw new NullPointerException("message error: " + entity + ", " + position);
+                    }
+                    cache.put(position, msg);
+                }
+                messages.add(msg);
+                ++position;
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            return false;
+            return null;
         }
+        // measure again
+        chatHistory.put(entity, history);
+        return messages;
     }
 
-    private boolean removeMessages(ID entity) {
-        String path = getMsgFilePath(entity);
+    private int numberOfMessages(ID entity) {
         try {
-            return delete(path);
+            return getHistory(entity).states.visibleCount();
         } catch (IOException e) {
             e.printStackTrace();
-            return false;
+            return 0;
         }
     }
 
-    private boolean clearMessages(ID entity) {
-        List<InstantMessage> messages = new ArrayList<>();
+    // remove the files without locking the table (the conversation is blocked until done)
+    private boolean removeMessages(ID entity, boolean keepEmpty) {
+        History history;
+        synchronized (this) {
+            history = getHistory(entity);
+            chatHistory.remove(entity);
+            searchTable.removeMessages(entity);
+            swapping.add(entity);
+        }
         String path = getMsgFilePath(entity);
         try {
-            return saveJSON(messages, path);
+            history.states.clear();
+            if (!history.log.clear() || (exists(path) && !delete(path))) {
+                return false;
+            }
+            // keep an empty log for this conversation
+            return !keepEmpty || new MessageLog(getMsgDirectory(entity)).create();
         } catch (IOException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            synchronized (this) {
+                swapping.remove(entity);
+                notifyAll();
+            }
         }
     }
 
     //-------- messages
 
-    public List<InstantMessage> messagesInConversation(Conversation chatBox) {
-        List<InstantMessage> msgList = chatHistory.get(chatBox.identifier);
-        if (msgList == null) {
-            msgList = new ArrayList<>();
-            List messages = loadMessages(chatBox.identifier);
-            if (messages != null) {
-                InstantMessage msg;
-                for (Object item : messages) {
-                    msg = InstantMessage.getInstance(item);
-                    if (msg == null) {
-                        throw new NullPointerException("message error: " + item);
-                    }
-                    msgList.add(msg);
-                }
+    /**
+     *  Get all messages in this conversation,
+     *  the returned list will load messages page by page when needed
+     *
+     * @param chatBox - conversation instance
+     * @return message list
+     */
+    public List<InstantMessage> messagesInConversation(final Conversation chatBox) {
+        return new AbstractList<InstantMessage>() {
+            @Override
+            public InstantMessage get(int index) {
+                return messageAtIndex(index, chatBox);
+            }
+
+            @Override
+            public int size() {
+                return numberOfMessages(chatBox);
             }
-            chatHistory.put(chatBox.identifier, msgList);
+        };
+    }
+
+    public synchronized int numberOfMessages(Conversation chatBox) {
+        return numberOfMessages(chatBox.identifier);
+    }
+
+    public synchronized InstantMessage messageAtIndex(int index, Conversation chatBox) {
+        History history = getHistory(chatBox.identifier);
+        InstantMessage iMsg;
+        try {
+            iMsg = history.messages.get(history.states.positionAt(index));
+        } catch (IOException e) {
+            e.printStackTrace();
+            iMsg = null;
         }
-        return msgList;
+        if (iMsg == null) {
+            // load the whole page
+            int from = index - index % PAGE_SIZE;
+            List<InstantMessage> page = loadMessages(from, PAGE_SIZE, chatBox.identifier);
+            if (page == null || index - from >= page.size()) {
+                throw new IndexOutOfBoundsException("index: " + index + ", conversation: " + chatBox.identifier);
+            }
+            iMsg = page.get(index - from);
+        }
+        return iMsg;
+    }
+
+    public synchronized List<InstantMessage> messages(int from, int count, Conversation chatBox) {
+        return loadMessages(from, count, chatBox.identifier);
     }
 
-    public int numberOfMessages(Conversation chatBox) {
-        List<InstantMessage> msgList = messagesInConversation(chatBox);
-        return msgList.size();
+    public synchronized boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
+        History history = getHistory(chatBox.identifier);
+        try {
+            int position = history.log.count();
+            if (!history.log.append(MessageLog.MESSAGE, encode(iMsg))) {
+                return false;
+            }
+            history.messages.put(position, iMsg);
+            history.states.add(position, iMsg.content.serialNumber);
+            chatHistory.put(chatBox.identifier, history);
+            indexMessage(iMsg, chatBox.identifier, position);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
-    public InstantMessage messageAtIndex(int index, Conversation chatBox) {
-        List<InstantMessage> msgList = messagesInConversation(chatBox);
-        return msgList.get(index);
+    /**
+     *  Append messages into the log as one record batch
+     *
+     * @param messages - instant messages
+     * @param chatBox - conversation instance
+     * @return false on error
+     */
+    public synchronized boolean insertMessages(List<InstantMessage> messages, Conversation chatBox) {
+        History history = getHistory(chatBox.identifier);
+        try {
+            int position = history.log.count();
+            List<byte[]> payloads = new ArrayList<>(messages.size());
+            for (InstantMessage iMsg : messages) {
+                payloads.add(encode(iMsg));
+            }
+            if (!history.log.append(MessageLog.MESSAGE, payloads)) {
+                return false;
+            }
+            for (InstantMessage iMsg : messages) {
+                history.messages.put(position, iMsg);
+                history.states.add(position, iMsg.content.serialNumber);
+                indexMessage(iMsg, chatBox.identifier, position);
+                ++position;
+            }
+            chatHistory.put(chatBox.identifier, history);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
-    public boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
-        List<InstantMessage> msgList = messagesInConversation(chatBox);
-        msgList.add(iMsg);
-        return saveMessages(chatBox.identifier);
+    // append a tombstone for the message (found by sn, no scanning)
+    private boolean removeMessage(InstantMessage iMsg, ID entity, byte flag) {
+        History history = getHistory(entity);
+        long sn = iMsg.content.serialNumber;
+        int position;
+        try {
+            position = history.states.positionOf(sn);
+            if (position < 0 || history.states.isRemoved(position)) {
+                return false;
+            }
+            if (!history.log.append(MessageLog.TOMBSTONE, tombstone(sn, flag))) {
+                return false;
+            }
+            history.states.markRemoved(position, flag);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        history.messages.remove(position);
+        searchTable.removeMessage(entity, position);
+        return true;
     }
 
-    public boolean removeMessage(InstantMessage iMsg, Conversation chatBox) {
-        List<InstantMessage> msgList = messagesInConversation(chatBox);
-        msgList.remove(iMsg);
-        return saveMessages(chatBox.identifier);
+    public synchronized boolean removeMessage(InstantMessage iMsg, Conversation chatBox) {
+        return removeMessage(iMsg, chatBox.identifier, MessageStates.REMOVED);
     }
 
-    public boolean withdrawMessage(InstantMessage iMsg, Conversation chatBox) {
-        // TODO: withdraw a message;
-        return false;
+    public synchronized boolean withdrawMessage(InstantMessage iMsg, Conversation chatBox) {
+        return removeMessage(iMsg, chatBox.identifier, MessageStates.WITHDRAWN);
     }
 
-    public boolean saveReceipt(InstantMessage receipt, Conversation chatBox) {
-        // TODO: save receipt of instant message
-        return false;
+    private static byte getState(InstantMessage receipt) {
+        if (Boolean.TRUE.equals(receipt.content.get("read"))) {
+            return STATE_READ;
+        }
+        ID sender = IDPool.getInstance().getID(receipt.envelope.sender);
+        if (sender != null && sender.getType() == NetworkType.Station.value) {
+            return STATE_DELIVERED;
+        }
+        return STATE_RECEIVED;
+    }
+
+    /**
+     *  Update state of the message which the receipt responds to
+     *
+     * @param receipt - receipt command message
+     * @param chatBox - conversation instance
+     * @return index of the message, -1 on not found (or state not changed)
+     */
+    public synchronized int saveReceipt(InstantMessage receipt, Conversation chatBox) {
+        MessageStates states = getHistory(chatBox.identifier).states;
+        try {
+            int position = states.positionOf(receipt.content.serialNumber);
+            if (position < 0 || states.isRemoved(position)
+                    || !states.setState(position, getState(receipt))) {
+                return -1;
+            }
+            return states.indexOf(position);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     *  Get delivery state of message
+     *
+     * @param index - message position
+     * @param chatBox - conversation instance
+     * @return STATE_DELIVERED, STATE_RECEIVED, STATE_READ; 0 for none
+     */
+    public synchronized byte getMessageState(int index, Conversation chatBox) {
+        MessageStates states = getHistory(chatBox.identifier).states;
+        try {
+            return states.getState(states.positionAt(index));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
     }
 
     public boolean removeMessages(Conversation chatBox) {
         return removeMessages(chatBox.identifier);
     }
 
+    public boolean removeMessages(ID entity) {
+        return removeMessages(entity, false);
+    }
+
     public boolean clearMessages(Conversation chatBox) {
-        return clearMessages(chatBox.identifier);
+        return removeMessages(chatBox.identifier, true);
+    }
+
+    /**
+     *  Compress message log of the conversation
+     *
+     * @param entity - conversation ID
+     * @param cold - true to compress the whole log, false for old segments only
+     * @return bytes saved
+     */
+    public long compressMessages(ID entity, boolean cold) {
+        MessageLog log;
+        synchronized (this) {
+            log = getMessageLog(entity);
+            // pin the log, it cannot be replaced or removed while compressing
+            swapping.add(entity);
+        }
+        try {
+            return log.compress(cold);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            synchronized (this) {
+                swapping.remove(entity);
+                notifyAll();
+            }
+        }
+    }
+
+    //-------- compaction
+
+    // "/sdcard/chat.dim.sechat/dkd/{address}/compacting"
+
+    private static String getCompactDirectory(ID entity) {
+        return getMsgDirectory(entity) + separator
+                + "compacting";
+    }
+
+    private static List<File> listFiles(String path) {
+        List<File> files = new ArrayList<>();
+        File[] items = new File(path).listFiles();
+        if (items != null) {
+            for (File item : items) {
+                if (item.isFile()) {
+                    files.add(item);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static long sizeOf(List<File> files) {
+        long size = 0;
+        for (File item : files) {
+            size += item.length();
+        }
+        return size;
+    }
+
+    // remove files left by the interrupted compaction
+    private static void removeFiles(String path) {
+        StorageWriter writer = StorageWriter.getInstance();
+        for (File item : listFiles(path)) {
+            writer.remove(item.getPath());
+        }
+        if (new File(path).exists()) {
+            writer.remove(path);
+        }
+        // the removing is queued, wait for it before writing there again
+        writer.flush(path);
+    }
+
+    private static byte[] tombstone(long sn, byte flag) {
+        byte[] payload = new byte[9];
+        MessageLog.writeInt((int) (sn >>> 32), payload, 0);
+        MessageLog.writeInt((int) sn, payload, 4);
+        payload[8] = flag;
+        return payload;
+    }
+
+    // check whether the conversation has anything to drop
+    private synchronized boolean isCompactable(ID entity, long expired, int maxMessages) throws IOException {
+        MessageStates states = getHistory(entity).states;
+        int visible = states.visibleCount();
+        if (visible < states.count()) {
+            // has removed messages
+            return true;
+        }
+        if (maxMessages > 0 && visible > maxMessages) {
+            return true;
+        }
+        if (expired > 0 && visible > 0) {
+            List<InstantMessage> first = loadMessages(0, 1, entity);
+            Date time = first == null || first.size() == 0 ? null : first.get(0).envelope.time;
+            return time != null && time.getTime() < expired;
+        }
+        return false;
+    }
+
+    /**
+     *  Rewrite message log of the conversation into new segments, without
+     *  the removed/withdrawn messages and the messages out of retention
+     *  (it may take a long time, call it in background)
+     *
+     * @param entity - conversation ID
+     * @param expired - drop the messages before this time (0 to keep all)
+     * @param maxMessages - keep the last messages only (0 to keep all)
+     * @param throttle - I/O budget, stop when cancelled
+     * @return bytes reclaimed
+     */
+    public long compactMessages(ID entity, long expired, int maxMessages, IOThrottle throttle) {
+        try {
+            if (!isCompactable(entity, expired, maxMessages)) {
+                return 0;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        String staging = getCompactDirectory(entity);
+        removeFiles(staging);
+        MessageLog newLog = new MessageLog(staging);
+        MessageStates newStates = new MessageStates(staging);
+        try {
+            long reclaimed = compactMessages(entity, expired, maxMessages, throttle, newLog, newStates);
+            if (reclaimed < 0) {
+                // cancelled
+                removeFiles(staging);
+                return 0;
+            }
+            return reclaimed;
+        } catch (IOException e) {
+            e.printStackTrace();
+            removeFiles(staging);
+            return 0;
+        }
+    }
+
+    private long compactMessages(ID entity, long expired, int maxMessages, IOThrottle throttle,
+                                 MessageLog newLog, MessageStates newStates) throws IOException {
+        History history;
+        int total;
+        int skip;
+        synchronized (this) {
+            history = getHistory(entity);
+            total = history.log.count();
+            skip = maxMessages > 0 ? history.states.visibleCount() - maxMessages : 0;
+        }
+        if (!newLog.create()) {
+            return -1;
+        }
+        // old position => new position (-1 for dropped)
+        int[] positions = new int[total];
+        List<Integer> indexed = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        int next = 0;
+
+        // 1. copy the messages kept, without locking the table
+        List<byte[]> payloads;
+        byte[] data;
+        InstantMessage iMsg;
+        Date time;
+        String text;
+        long bytes;
+        int position;
+        for (int from = 0; from < total; from += PAGE_SIZE) {
+            payloads = history.log.read(from, Math.min(PAGE_SIZE, total - from));
+            bytes = 0;
+            for (int index = 0; index < payloads.size(); ++index) {
+                position = from + index;
+                positions[position] = -1;
+                if (history.states.isRemoved(position)) {
+                    continue;
+                }
+                data = payloads.get(index);
+                bytes += data.length;
+                if (skip > 0) {
+                    --skip;
+                    continue;
+                }
+                iMsg = InstantMessage.getInstance(BinaryCodec.decode(data));
+                if (iMsg == null) {
+                    continue;
+                }
+                time = iMsg.envelope.time;
+                if (expired > 0 && time != null && time.getTime() < expired) {
+                    continue;
+                }
+                newLog.append(MessageLog.MESSAGE, data);
+                newStates.add(next, iMsg.content.serialNumber);
+                newStates.setState(next, history.states.getState(position));
+                text = getText(iMsg);
+                if (text != null) {
+                    indexed.add(next);
+                    times.add(timeOf(iMsg));
+                    texts.add(text);
+                }
+                positions[position] = next;
+                ++next;
+                // read and written
+                bytes += data.length;
+            }
+            if (!throttle.acquire(bytes)) {
+                return -1;
+            }
+            if ((from / PAGE_SIZE) % PAGE_SIZE == PAGE_SIZE - 1) {
+                // limit the buffered records
+                newLog.flush();
+            }
+        }
+
+        // 2. catch up the changes during copying
+        String directory = getMsgDirectory(entity);
+        String staging = getCompactDirectory(entity);
+        History current;
+        synchronized (this) {
+            current = getHistory(entity);
+            // messages appended
+            int count = current.log.count();
+            for (int from = total; from < count; from += PAGE_SIZE) {
+                payloads = current.log.read(from, PAGE_SIZE);
+                for (int index = 0; index < payloads.size(); ++index) {
+                    position = from + index;
+                    iMsg = InstantMessage.getInstance(BinaryCodec.decode(payloads.get(index)));
+                    if (iMsg == null || current.states.isRemoved(position)) {
+                        continue;
+                    }
+                    newLog.append(MessageLog.MESSAGE, payloads.get(index));
+                    newStates.add(next, iMsg.content.serialNumber);
+                    newStates.setState(next, current.states.getState(position));
+                    text = getText(iMsg);
+                    if (text != null) {
+                        indexed.add(next);
+                        times.add(timeOf(iMsg));
+                        texts.add(text);
+                    }
+                    ++next;
+                }
+            }
+            // messages removed and states updated
+            byte flag;
+            for (position = 0; position < total; ++position) {
+                if (positions[position] < 0) {
+                    continue;
+                }
+                flag = current.states.getFlags(position);
+                if (flag != 0) {
+                    newLog.append(MessageLog.TOMBSTONE, tombstone(current.states.getSerialNumber(position), flag));
+                    newStates.markRemoved(positions[position], flag);
+                } else {
+                    newStates.setState(positions[position], current.states.getState(position));
+                }
+            }
+            // no more changes to this conversation until the files replaced
+            swapping.add(entity);
+            chatHistory.remove(entity);
+        }
+
+        // 3. replace the old files, without locking the table
+        long reclaimed;
+        boolean replaced = false;
+        try {
+            newLog.flush();
+            newStates.flush();
+            current.log.flush();
+            current.states.flush();
+
+            final List<File> oldFiles = listFiles(directory);
+            final List<File> newFiles = listFiles(staging);
+            reclaimed = sizeOf(oldFiles) - sizeOf(newFiles);
+            final String target = directory;
+            final String source = staging;
+            final StorageWriter writer = StorageWriter.getInstance();
+            // replace all files at once
+            writer.batch(new Runnable() {
+                @Override
+                public void run() {
+                    // the replaced files are not removed, so replaying this batch is harmless
+                    Set<String> names = new HashSet<>();
+                    for (File item : newFiles) {
+                        names.add(item.getName());
+                        writer.move(item.getPath(), target + separator + item.getName());
+                    }
+                    for (File item : oldFiles) {
+                        if (!names.contains(item.getName()) && !item.getName().equals("messages.js")) {
+                            writer.remove(item.getPath());
+                        }
+                    }
+                    writer.remove(source);
+                }
+            });
+            writer.flush(target);
+            replaced = true;
+        } finally {
+            synchronized (this) {
+                if (replaced) {
+                    // message positions changed
+                    searchTable.removeMessages(entity);
+                    for (int index = 0; index < indexed.size(); ++index) {
+                        searchTable.addMessage(entity, indexed.get(index), times.get(index), texts.get(index));
+                    }
+                }
+                swapping.remove(entity);
+                notifyAll();
+            }
+        }
+        return reclaimed;
+    }
+
+    //-------- search
+
+    private static String getText(InstantMessage iMsg) {
+        Content content = iMsg.content;
+        if (content instanceof TextContent) {
+            return ((TextContent) content).getText();
+        }
+        return null;
+    }
+
+    private static long timeOf(InstantMessage iMsg) {
+        Date time = iMsg.envelope.time;
+        return time == null ? 0 : time.getTime();
+    }
+
+    private void indexMessage(InstantMessage iMsg, ID entity, int position) {
+        String text = getText(iMsg);
+        if (text != null) {
+            searchTable.addMessage(entity, position, timeOf(iMsg), text);
+        }
+    }
+
+    // index all messages in the conversation (without caching them),
+    // the table is locked for one page each time
+    private void indexMessages(ID entity) throws IOException {
+        History history = null;
+        List<byte[]> payloads;
+        List<InstantMessage> messages = new ArrayList<>(PAGE_SIZE);
+        InstantMessage iMsg;
+        int from = 0;
+        while (true) {
+            synchronized (this) {
+                if (history != getHistory(entity)) {
+                    // reopened (e.g.: compacted, which indexed the new positions), start again
+                    history = getHistory(entity);
+                    from = 0;
+                }
+                payloads = history.log.read(from, PAGE_SIZE);
+            }
+            if (payloads.size() == 0) {
+                return;
+            }
+            messages.clear();
+            for (byte[] data : payloads) {
+                messages.add(InstantMessage.getInstance(BinaryCodec.decode(data)));
+            }
+            synchronized (this) {
+                if (history != getHistory(entity)) {
+                    continue;
+                }
+                for (int index = 0; index < messages.size(); ++index) {
+                    iMsg = messages.get(index);
+                    if (iMsg != null) {
+                        indexMessage(iMsg, entity, from + index);
+                    }
+                }
+            }
+            from += payloads.size();
+        }
+    }
+
+    /**
+     *  Index all message history when the search index is not built yet
+     *  (it may take a long time, call it in background; the searches
+     *  meanwhile return the messages indexed so far)
+     *
+     * @param conversations - all conversation IDs
+     */
+    public void buildSearchIndex(List<ID> conversations) {
+        synchronized (buildLock) {
+            if (searchTable.isBuilt()) {
+                return;
+            }
+            searchTable.beginBuild();
+            for (ID entity : conversations) {
+                try {
+                    indexMessages(entity);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            searchTable.endBuild();
+        }
+    }
+
+    /**
+     *  Search text messages in all conversations
+     *
+     * @param keywords - query text
+     * @param limit - max results
+     * @return conversation IDs and message positions, newest first
+     */
+    public List<SearchTable.Hit> searchMessages(String keywords, int limit) {
+        List<SearchTable.Hit> hits = searchTable.search(keywords, limit);
+        // message positions => visible indexes
+        List<SearchTable.Hit> results = new ArrayList<>(hits.size());
+        synchronized (this) {
+            MessageStates states;
+            for (SearchTable.Hit item : hits) {
+                states = getHistory(item.identifier).states;
+                try {
+                    if (!states.isRemoved(item.position)) {
+                        results.add(new SearchTable.Hit(item.identifier, states.indexOf(item.position)));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return results;
+    }
+
+    public boolean isSearchIndexBuilt() {
+        return searchTable.isBuilt();
+    }
+
+    /**
+     *  Set record format for new messages
+     *
+     * @param format - FORMAT_JSON or FORMAT_BINARY
+     */
+    public synchronized void setRecordFormat(int format) {
+        recordFormat = format;
+    }
+
+    //-------- cache statistics
+
+    public synchronized void setCacheCapacity(long capacity) {
+        chatHistory.setCapacity(capacity);
+    }
+
+    public synchronized Map<String, Object> getCacheStatistics() {
+        Map<String, Object> info = new HashMap<>();
+        info.put("capacity", chatHistory.getCapacity());
+        info.put("size", chatHistory.getSize());
+        info.put("hits", chatHistory.getHitCount());
+        info.put("misses", chatHistory.getMissCount());
+        info.put("evictions", chatHistory.getEvictionCount());
+        return info;
     }
 }
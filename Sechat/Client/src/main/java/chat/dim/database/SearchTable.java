@@ -0,0 +1,903 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import chat.dim.ID;
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.UTF8;
+import chat.dim.utils.IDPool;
+
+/**
+ *  Full-text index of message text
+ *
+ *      "/sdcard/chat.dim.sechat/dkd/search.txt"
+ *
+ *  Text is split into terms: words of letters/digits (lower case), and
+ *  bigrams of CJK characters (a single CJK character stays as a unigram).
+ *  Each indexed message is a document, the posting list of a term holds
+ *  the documents in ascending order, so a query is an intersection of
+ *  sorted int arrays. A query word of letters/digits matches the words
+ *  starting with it (e.g. "hel" matches "hello"), only the most frequent
+ *  MAX_EXPANSION terms are taken for a short prefix.
+ *  Documents are numbered in time order (renumbered after indexing older
+ *  messages), so searching walks from the newest and stops at the limit.
+ *
+ *  The index file is a journal of lines:
+ *
+ *      "#built:2"                                  - all history was indexed
+ *      "+\t{ID}\t{position}\t{time}\t{terms}"      - message added
+ *      "-\t{ID}\t{position}"                       - message removed
+ *      "*\t{ID}"                                   - conversation cleared
+ *
+ *  New lines are appended by the StorageWriter (kept in memory until
+ *  committed), the memory index will be loaded by replaying the journal
+ *  when searching first time. When the lines of removed documents
+ *  dominate, the file will be rewritten with the live documents only.
+ */
+public class SearchTable extends ExternalStorage {
+
+    /**
+     *  Search result
+     */
+    public static class Hit {
+        public final ID identifier;  // conversation ID
+        public final int position;   // message position in conversation
+
+        Hit(ID identifier, int position) {
+            super();
+            this.identifier = identifier;
+            this.position = position;
+        }
+    }
+
+    // the index built by older versions (without message time) will be rebuilt
+    private static final String BUILT = "#built:2";
+
+    // max terms taken by a prefix (or a single CJK character)
+    static int MAX_EXPANSION = 32;
+    // rewrite the index file when it has more lines than this, and most are dead
+    static int MIN_REWRITE_LINES = 1024;
+
+    // conversation ordinal => ID
+    private List<ID> conversations = null;
+    private Map<ID, Integer> ordinals = null;
+    // conversation ordinal => documents in position order
+    private List<IntList> conversationDocs = null;
+
+    // document => conversation ordinal, message position, message time
+    private int[] docConversation = null;
+    private int[] docPosition = null;
+    private long[] docTime = null;
+    private int docCount = 0;
+    private BitSet removedDocs = null;
+
+    // term => documents, in term order for prefix matching
+    private TreeMap<String, IntList> postings = null;
+    // reversed CJK bigrams => posting list (to find the bigrams ending with a character)
+    private TreeMap<String, IntList> reversedBigrams = null;
+    private int removedCount = 0;
+    // true when a document is older than the ones before it
+    private boolean unordered = false;
+    // lines in the index file (and pending)
+    private int lineCount = 0;
+
+    private boolean built = false;
+
+    // bytes written into the index file (committed / submitted)
+    private long committedLength;
+    private long fileLength;
+    // new lines not committed yet, and the length of them submitted
+    private StringBuilder pendingLines = new StringBuilder();
+    private int submitted = 0;
+    // true to replace the whole file with the pending lines
+    private boolean rewrite = false;
+    // increased when rebuilding, to ignore the commits before
+    private int epoch = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public SearchTable() {
+        super();
+        StorageWriter.getInstance().recover();
+        fileLength = committedLength = new File(getIndexFilePath()).length();
+    }
+
+    // "/sdcard/chat.dim.sechat/dkd/search.txt"
+    private static String getIndexFilePath() {
+        return root + separator + "dkd" + separator + "search.txt";
+    }
+
+    /**
+     *  Documents of a query term (ascending)
+     */
+    private static abstract class Postings {
+
+        abstract int size();
+
+        abstract boolean contains(int doc);
+
+        // get the largest document before this one, -1 for none
+        abstract int previous(int doc);
+    }
+
+    /**
+     *  Growable int array
+     */
+    private static class IntList extends Postings {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void insert(int index, int value) {
+            add(value);
+            System.arraycopy(data, index, data, index + 1, size - index - 1);
+            data[index] = value;
+        }
+
+        void removeAt(int index) {
+            System.arraycopy(data, index + 1, data, index, size - index - 1);
+            --size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean contains(int doc) {
+            return Arrays.binarySearch(data, 0, size, doc) >= 0;
+        }
+
+        @Override
+        int previous(int doc) {
+            int index = Arrays.binarySearch(data, 0, size, doc);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index > 0 ? data[index - 1] : -1;
+        }
+    }
+
+    /**
+     *  Documents of all terms containing a single CJK character,
+     *  or starting with a word
+     */
+    private static class Union extends Postings {
+        final List<IntList> lists = new ArrayList<>();
+
+        @Override
+        int size() {
+            int total = 0;
+            for (IntList item : lists) {
+                total += item.size;
+            }
+            return total;
+        }
+
+        @Override
+        boolean contains(int doc) {
+            for (IntList item : lists) {
+                if (item.contains(doc)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int previous(int doc) {
+            int max = -1;
+            for (IntList item : lists) {
+                max = Math.max(max, item.previous(doc));
+            }
+            return max;
+        }
+    }
+
+    //-------- tokenizer
+
+    static boolean isCJK(char ch) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(ch);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    /**
+     *  Split text into terms
+     *
+     * @param text - message text
+     * @return distinct terms
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        String lower = text.toLowerCase();
+        int length = lower.length();
+        int start;
+        char ch;
+        for (int pos = 0; pos < length; ) {
+            ch = lower.charAt(pos);
+            if (isCJK(ch)) {
+                start = pos;
+                while (pos < length && isCJK(lower.charAt(pos))) {
+                    ++pos;
+                }
+                if (pos - start == 1) {
+                    terms.add(lower.substring(start, pos));
+                } else {
+                    for (int i = start; i < pos - 1; ++i) {
+                        terms.add(lower.substring(i, i + 2));
+                    }
+                }
+            } else if (Character.isLetterOrDigit(ch)) {
+                start = pos;
+                while (pos < length && Character.isLetterOrDigit(lower.charAt(pos))
+                        && !isCJK(lower.charAt(pos))) {
+                    ++pos;
+                }
+                terms.add(lower.substring(start, pos));
+            } else {
+                ++pos;
+            }
+        }
+        return terms;
+    }
+
+    //-------- memory index
+
+    private void reset() {
+        conversations = new ArrayList<>();
+        ordinals = new HashMap<>();
+        conversationDocs = new ArrayList<>();
+        docConversation = new int[1024];
+        docPosition = new int[1024];
+        docTime = new long[1024];
+        docCount = 0;
+        removedDocs = new BitSet();
+        removedCount = 0;
+        postings = new TreeMap<>();
+        reversedBigrams = new TreeMap<>();
+        unordered = false;
+        lineCount = 0;
+        built = false;
+    }
+
+    private int ordinalOf(ID identifier) {
+        Integer ordinal = ordinals.get(identifier);
+        if (ordinal == null) {
+            ordinal = conversations.size();
+            conversations.add(identifier);
+            ordinals.put(identifier, ordinal);
+            conversationDocs.add(new IntList());
+        }
+        return ordinal;
+    }
+
+    private void cacheDocument(ID identifier, int position, long time, String[] terms) {
+        if (docCount == docPosition.length) {
+            docConversation = Arrays.copyOf(docConversation, docCount * 2);
+            docPosition = Arrays.copyOf(docPosition, docCount * 2);
+            docTime = Arrays.copyOf(docTime, docCount * 2);
+        }
+        int ordinal = ordinalOf(identifier);
+        IntList docs = conversationDocs.get(ordinal);
+        int index = indexOfPosition(docs, position);
+        if (index < docs.size && docPosition[docs.data[index]] == position) {
+            // indexed already (new message during building)
+            return;
+        }
+        int doc = docCount++;
+        if (doc > 0 && time < docTime[doc - 1]) {
+            unordered = true;
+        }
+        docConversation[doc] = ordinal;
+        docPosition[doc] = position;
+        docTime[doc] = time;
+        docs.insert(index, doc);
+        IntList list;
+        for (String term : terms) {
+            list = postings.get(term);
+            if (list == null) {
+                list = new IntList();
+                postings.put(term, list);
+                if (isBigram(term)) {
+                    reversedBigrams.put(reverse(term), list);
+                }
+            }
+            list.add(doc);
+        }
+    }
+
+    // documents are in position order, find the first one not before this position
+    private int indexOfPosition(IntList docs, int position) {
+        int low = 0, high = docs.size;
+        int mid;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (docPosition[docs.data[mid]] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void removeDocument(ID identifier, int position) {
+        Integer ordinal = ordinals.get(identifier);
+        if (ordinal == null) {
+            return;
+        }
+        IntList docs = conversationDocs.get(ordinal);
+        int low = indexOfPosition(docs, position);
+        if (low < docs.size && docPosition[docs.data[low]] == position) {
+            removedDocs.set(docs.data[low]);
+            ++removedCount;
+            docs.removeAt(low);
+        }
+    }
+
+    private void clearDocuments(ID identifier) {
+        Integer ordinal = ordinals.get(identifier);
+        if (ordinal == null) {
+            return;
+        }
+        IntList docs = conversationDocs.get(ordinal);
+        for (int i = 0; i < docs.size; ++i) {
+            removedDocs.set(docs.data[i]);
+        }
+        removedCount += docs.size;
+        docs.size = 0;
+    }
+
+    private static boolean isBigram(String term) {
+        return term.length() == 2 && isCJK(term.charAt(1));
+    }
+
+    private static String reverse(String bigram) {
+        return new String(new char[]{bigram.charAt(1), bigram.charAt(0)});
+    }
+
+    // number the live documents in time order again, drop the removed ones
+    private void renumber() {
+        int live = docCount - removedCount;
+        Integer[] order = new Integer[live];
+        int count = 0;
+        for (int doc = 0; doc < docCount; ++doc) {
+            if (!removedDocs.get(doc)) {
+                order[count++] = doc;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer doc1, Integer doc2) {
+                long time1 = docTime[doc1];
+                long time2 = docTime[doc2];
+                if (time1 != time2) {
+                    return time1 < time2 ? -1 : 1;
+                }
+                return doc1 - doc2;
+            }
+        });
+        int[] mapping = new int[docCount];
+        int capacity = Math.max(live, 1024);
+        int[] conversation = new int[capacity];
+        int[] position = new int[capacity];
+        long[] time = new long[capacity];
+        int old;
+        for (int doc = 0; doc < live; ++doc) {
+            old = order[doc];
+            mapping[old] = doc;
+            conversation[doc] = docConversation[old];
+            position[doc] = docPosition[old];
+            time[doc] = docTime[old];
+        }
+        // posting lists (ascending)
+        Iterator<Map.Entry<String, IntList>> iterator = postings.entrySet().iterator();
+        IntList list;
+        int size;
+        while (iterator.hasNext()) {
+            Map.Entry<String, IntList> entry = iterator.next();
+            list = entry.getValue();
+            size = 0;
+            for (int i = 0; i < list.size; ++i) {
+                if (!removedDocs.get(list.data[i])) {
+                    list.data[size++] = mapping[list.data[i]];
+                }
+            }
+            list.size = size;
+            if (size == 0) {
+                iterator.remove();
+                if (isBigram(entry.getKey())) {
+                    reversedBigrams.remove(reverse(entry.getKey()));
+                }
+            } else {
+                Arrays.sort(list.data, 0, size);
+            }
+        }
+        // documents of conversations (still in position order, all live)
+        for (IntList docs : conversationDocs) {
+            for (int i = 0; i < docs.size; ++i) {
+                docs.data[i] = mapping[docs.data[i]];
+            }
+        }
+        docConversation = conversation;
+        docPosition = position;
+        docTime = time;
+        docCount = live;
+        removedDocs = new BitSet();
+        removedCount = 0;
+        unordered = false;
+    }
+
+    //-------- journal
+
+    private boolean isReady() {
+        if (postings != null) {
+            return true;
+        }
+        if (!loadIndex()) {
+            return false;
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    private boolean loadIndex() {
+        reset();
+        // committed lines in file
+        File file = new File(getIndexFilePath());
+        if (committedLength > 0 && file.exists()) {
+            try {
+                InputStream is = new FilterInputStream(new FileInputStream(file)) {
+                    private long remaining = committedLength;
+
+                    @Override
+                    public int read() throws IOException {
+                        if (remaining <= 0) {
+                            return -1;
+                        }
+                        --remaining;
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (remaining <= 0) {
+                            return -1;
+                        }
+                        int cnt = super.read(b, off, (int) Math.min(len, remaining));
+                        if (cnt > 0) {
+                            remaining -= cnt;
+                        }
+                        return cnt;
+                    }
+                };
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        replay(line);
+                        ++lineCount;
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                postings = null;
+                return false;
+            }
+        }
+        // lines not committed yet
+        for (String line : pendingLines.toString().split("\n")) {
+            if (line.length() > 0) {
+                replay(line);
+                ++lineCount;
+            }
+        }
+        return true;
+    }
+
+    private void replay(String line) {
+        if (line.equals(BUILT)) {
+            built = true;
+            return;
+        }
+        String[] fields = line.split("\t", 5);
+        if (fields.length < 2) {
+            return;
+        }
+        ID identifier = IDPool.getInstance().getID(fields[1]);
+        if (identifier == null) {
+            return;
+        }
+        try {
+            if (fields[0].equals("+") && fields.length == 5) {
+                cacheDocument(identifier, Integer.parseInt(fields[2]), Long.parseLong(fields[3]), fields[4].split(" "));
+            } else if (fields[0].equals("+") && fields.length == 4) {
+                // old line without time
+                cacheDocument(identifier, Integer.parseInt(fields[2]), 0, fields[3].split(" "));
+            } else if (fields[0].equals("-") && fields.length == 3) {
+                removeDocument(identifier, Integer.parseInt(fields[2]));
+            } else if (fields[0].equals("*")) {
+                clearDocuments(identifier);
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void appendLine(String line) {
+        pendingLines.append(line);
+        pendingLines.append("\n");
+        ++lineCount;
+        StorageWriter.getInstance().post(getIndexFilePath(), flushTask);
+    }
+
+    // rewrite the index file with the live documents, when the dead lines dominate
+    private void compactIfNeeded() {
+        if (postings == null || lineCount < MIN_REWRITE_LINES) {
+            return;
+        }
+        if (lineCount - (docCount - removedCount) <= docCount - removedCount) {
+            return;
+        }
+        renumber();
+        // collect terms of each document
+        StringBuilder[] terms = new StringBuilder[docCount];
+        IntList list;
+        int doc;
+        for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+            list = entry.getValue();
+            for (int i = 0; i < list.size; ++i) {
+                doc = list.data[i];
+                if (terms[doc] == null) {
+                    terms[doc] = new StringBuilder(entry.getKey());
+                } else {
+                    terms[doc].append(" ").append(entry.getKey());
+                }
+            }
+        }
+        pendingLines.setLength(0);
+        for (doc = 0; doc < docCount; ++doc) {
+            pendingLines.append("+\t").append(conversations.get(docConversation[doc]))
+                    .append("\t").append(docPosition[doc])
+                    .append("\t").append(docTime[doc])
+                    .append("\t").append(terms[doc]).append("\n");
+        }
+        lineCount = docCount;
+        if (built) {
+            pendingLines.append(BUILT).append("\n");
+            ++lineCount;
+        }
+        // replace the whole file, the commits before are ignored
+        submitted = 0;
+        rewrite = true;
+        fileLength = committedLength = 0;
+        ++epoch;
+        StorageWriter.getInstance().post(getIndexFilePath(), flushTask);
+    }
+
+    // submit pending lines (called by storage thread)
+    private synchronized void flush() {
+        final int end = pendingLines.length();
+        if (submitted == end) {
+            return;
+        }
+        StorageWriter writer = StorageWriter.getInstance();
+        byte[] data = UTF8.encode(pendingLines.substring(submitted));
+        final boolean rewriting = rewrite;
+        if (rewrite) {
+            writer.put(getIndexFilePath(), data);
+            fileLength = data.length;
+            rewrite = false;
+        } else {
+            writer.write(getIndexFilePath(), fileLength, data);
+            fileLength += data.length;
+        }
+        submitted = end;
+        final long length = fileLength;
+        final int current = epoch;
+        writer.afterCommit(new StorageWriter.CommitCallback() {
+            @Override
+            public void onCommitted() {
+                committed(current, end, length);
+            }
+
+            @Override
+            public void onFailed() {
+                failed(current, rewriting);
+            }
+        });
+    }
+
+    // the lines are readable from file now
+    private synchronized void committed(int oldEpoch, int end, long length) {
+        if (oldEpoch != epoch) {
+            return;
+        }
+        pendingLines.delete(0, end);
+        submitted -= end;
+        committedLength = length;
+    }
+
+    // the lines are still in buffer, submit them all again later
+    private synchronized void failed(int oldEpoch, boolean rewriting) {
+        if (oldEpoch != epoch) {
+            return;
+        }
+        submitted = 0;
+        fileLength = committedLength;
+        rewrite |= rewriting;
+        StorageWriter.getInstance().post(getIndexFilePath(), flushTask);
+    }
+
+    private static String join(Set<String> terms) {
+        StringBuilder sb = new StringBuilder();
+        for (String term : terms) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(term);
+        }
+        return sb.toString();
+    }
+
+    //-------- building
+
+    /**
+     *  Check whether all message history was indexed
+     *
+     * @return false when 'beginBuild()' is needed
+     */
+    public synchronized boolean isBuilt() {
+        return isReady() && built;
+    }
+
+    /**
+     *  Drop the index and start indexing all messages with 'addMessage()'
+     */
+    public synchronized void beginBuild() {
+        reset();
+        pendingLines.setLength(0);
+        submitted = 0;
+        rewrite = true;
+        fileLength = committedLength = 0;
+        ++epoch;
+    }
+
+    /**
+     *  Mark all history indexed
+     */
+    public synchronized void endBuild() {
+        built = true;
+        appendLine(BUILT);
+    }
+
+    //-------- updating
+
+    /**
+     *  Index text of the new message
+     *
+     * @param identifier - conversation ID
+     * @param position - message position
+     * @param time - message time (milliseconds, for ordering results)
+     * @param text - message text
+     */
+    public synchronized void addMessage(ID identifier, int position, long time, String text) {
+        Set<String> terms = tokenize(text);
+        if (terms.size() == 0) {
+            return;
+        }
+        if (postings != null) {
+            cacheDocument(identifier, position, time, terms.toArray(new String[terms.size()]));
+        }
+        appendLine("+\t" + identifier + "\t" + position + "\t" + time + "\t" + join(terms));
+    }
+
+    /**
+     *  Remove message from the index
+     *
+     * @param identifier - conversation ID
+     * @param position - message position
+     */
+    public synchronized void removeMessage(ID identifier, int position) {
+        if (postings != null) {
+            removeDocument(identifier, position);
+        }
+        appendLine("-\t" + identifier + "\t" + position);
+        compactIfNeeded();
+    }
+
+    /**
+     *  Remove all messages of the conversation from the index
+     *
+     * @param identifier - conversation ID
+     */
+    public synchronized void removeMessages(ID identifier) {
+        if (postings != null) {
+            clearDocuments(identifier);
+        }
+        appendLine("*\t" + identifier);
+        compactIfNeeded();
+    }
+
+    //-------- searching
+
+    // documents of the query term
+    private Postings documentsOf(String term) {
+        List<IntList> lists = new ArrayList<>();
+        if (isCJK(term.charAt(0))) {
+            if (term.length() != 1) {
+                return postings.get(term);
+            }
+            // single CJK character, take the terms starting or ending with it
+            lists.addAll(postings.subMap(term, term + Character.MAX_VALUE).values());
+            for (IntList item : reversedBigrams.subMap(term, term + Character.MAX_VALUE).values()) {
+                if (!lists.contains(item)) {
+                    lists.add(item);
+                }
+            }
+        } else {
+            // word, take all words starting with it
+            lists.addAll(postings.subMap(term, term + Character.MAX_VALUE).values());
+        }
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        Union union = new Union();
+        if (lists.size() <= MAX_EXPANSION) {
+            union.lists.addAll(lists);
+            return union;
+        }
+        // too many terms, take the most frequent ones
+        PriorityQueue<IntList> queue = new PriorityQueue<>(MAX_EXPANSION, new Comparator<IntList>() {
+            @Override
+            public int compare(IntList list1, IntList list2) {
+                return list1.size - list2.size;
+            }
+        });
+        for (IntList item : lists) {
+            if (queue.size() < MAX_EXPANSION) {
+                queue.add(item);
+            } else if (item.size > queue.peek().size) {
+                queue.poll();
+                queue.add(item);
+            }
+        }
+        union.lists.addAll(queue);
+        return union;
+    }
+
+    /**
+     *  Search messages containing all terms of the keywords
+     *
+     * @param keywords - query text
+     * @param limit - max results
+     * @return hits, newest first
+     */
+    public synchronized List<Hit> search(String keywords, int limit) {
+        List<Hit> results = new ArrayList<>();
+        if (!isReady()) {
+            return results;
+        }
+        Set<String> terms = tokenize(keywords);
+        if (terms.size() == 0) {
+            return results;
+        }
+        if (unordered) {
+            // older messages indexed (e.g.: building), put them in time order
+            renumber();
+        }
+        List<Postings> lists = new ArrayList<>();
+        Postings docs;
+        for (String term : terms) {
+            docs = documentsOf(term);
+            if (docs == null || docs.size() == 0) {
+                return results;
+            }
+            lists.add(docs);
+        }
+        // walk the shortest list from the newest, check the others
+        Collections.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings list1, Postings list2) {
+                return list1.size() - list2.size();
+            }
+        });
+        Postings shortest = lists.get(0);
+        boolean matched;
+        for (int doc = shortest.previous(docCount); doc >= 0 && results.size() < limit; doc = shortest.previous(doc)) {
+            if (removedDocs.get(doc)) {
+                continue;
+            }
+            matched = true;
+            for (int j = 1; j < lists.size(); ++j) {
+                if (!lists.get(j).contains(doc)) {
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                results.add(new Hit(conversations.get(docConversation[doc]), docPosition[doc]));
+            }
+        }
+        return results;
+    }
+
+    /**
+     *  Get index info: documents, removed, terms, lines
+     *
+     * @return statistics
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> info = new HashMap<>();
+        if (isReady()) {
+            info.put("documents", docCount - removedCount);
+            info.put("removed", removedCount);
+            info.put("terms", postings.size());
+            info.put("lines", lineCount);
+        }
+        return info;
+    }
+}
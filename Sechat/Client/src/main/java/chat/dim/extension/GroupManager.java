@@ -253,11 +253,10 @@ public class GroupManager {
         assert members != null : "failed to get members for group: " + group;
         int count = 0;
         for (ID member : newMembers) {
-            if (members.contains(member)) {
-                continue;
+            // members list is indexed, duplicated member will be ignored
+            if (members.add(member)) {
+                ++count;
             }
-            members.add(member);
-            ++count;
         }
         if (count == 0) {
             return false;
@@ -270,11 +269,9 @@ public class GroupManager {
         assert members != null : "failed to get members for group: " + group;
         int count = 0;
         for (ID member : outMembers) {
-            if (!members.contains(member)) {
-                continue;
+            if (members.remove(member)) {
+                ++count;
             }
-            members.remove(member);
-            ++count;
         }
         if (count == 0) {
             return false;
@@ -25,9 +25,16 @@
  */
 package chat.dim.model;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import chat.dim.Entity;
 import chat.dim.ID;
 import chat.dim.InstantMessage;
+import chat.dim.utils.IDPool;
 
 public class Amanuensis {
     private static final Amanuensis ourInstance = new Amanuensis();
@@ -37,6 +44,40 @@ public class Amanuensis {
 
     public ConversationDataSource database = null;
 
+    /**
+     *  Message waiting to be saved
+     */
+    private static class Request {
+
+        final Conversation chatBox;
+        final InstantMessage iMsg;
+        final Runnable callback;  // run after saved
+
+        // the same message received before in this burst
+        Request original = null;
+        boolean result = false;
+
+        Request(Conversation chatBox, InstantMessage iMsg, Runnable callback) {
+            super();
+            this.chatBox = chatBox;
+            this.iMsg = iMsg;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     *  Messages received together (e.g.: after reconnecting)
+     */
+    private static class Burst {
+
+        final List<Request> requests = new ArrayList<>();
+        // "{sender}:{sn}" => first request
+        final Map<String, Request> messages = new HashMap<>();
+    }
+
+    // messages received by this thread, saved together when the burst ends
+    private final ThreadLocal<Burst> burst = new ThreadLocal<>();
+
     // conversation factory
     public Conversation getConversation(ID identifier) {
         // create directly if we can find the entity
@@ -56,31 +97,184 @@ public class Amanuensis {
     }
 
     private Conversation getConversation(InstantMessage iMsg) {
-        ID receiver = ID.getInstance(iMsg.envelope.receiver);
+        ID receiver = IDPool.getInstance().getID(iMsg.envelope.receiver);
         if (receiver.isGroup()) {
             // group chat, get chat box with group ID
             return getConversation(receiver);
         }
-        ID group = ID.getInstance(iMsg.content.getGroup());
+        ID group = IDPool.getInstance().getID(iMsg.content.getGroup());
         if (group != null) {
             // group chat, get chat box with group ID
             return getConversation(group);
         }
         // personal chat, get chat box with contact ID
-        ID sender = ID.getInstance(iMsg.envelope.sender);
+        ID sender = IDPool.getInstance().getID(iMsg.envelope.sender);
         return getConversation(sender);
     }
 
-    public boolean saveMessage(InstantMessage iMsg) {
+    //-------- burst
+
+    /**
+     *  Start collecting the messages saved by this thread (the receiving thread),
+     *  they will be saved together when the burst ends
+     */
+    public void beginBurst() {
+        if (burst.get() == null) {
+            burst.set(new Burst());
+        }
+    }
+
+    /**
+     *  Get count of messages collected by this thread
+     *
+     * @return 0 for not in burst
+     */
+    public int getBurstSize() {
+        Burst current = burst.get();
+        return current == null ? 0 : current.requests.size();
+    }
+
+    /**
+     *  Save the messages collected, one write and one notification
+     *  for each conversation
+     *
+     * @return results of the messages, in the order collected
+     */
+    public boolean[] endBurst() {
+        Burst current = burst.get();
+        if (current == null) {
+            return new boolean[0];
+        }
+        burst.remove();
+        save(current.requests);
+        boolean[] results = new boolean[current.requests.size()];
+        for (int index = 0; index < results.length; ++index) {
+            results[index] = current.requests.get(index).result;
+        }
+        return results;
+    }
+
+    private boolean save(Request request) {
+        Burst current = burst.get();
+        if (current == null) {
+            List<Request> requests = new ArrayList<>();
+            requests.add(request);
+            save(requests);
+            return request.result;
+        }
+        String key = request.iMsg.envelope.sender + ":" + request.iMsg.content.serialNumber;
+        request.original = current.messages.get(key);
+        if (request.original == null) {
+            current.messages.put(key, request);
+        }
+        current.requests.add(request);
+        // saved later
+        return true;
+    }
+
+    // save messages of each conversation together, in the order of first message
+    private void save(List<Request> requests) {
+        Map<ID, List<Request>> groups = new LinkedHashMap<>();
+        List<Request> group;
+        for (Request item : requests) {
+            if (item.original != null) {
+                // received again
+                continue;
+            }
+            group = groups.get(item.chatBox.identifier);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(item.chatBox.identifier, group);
+            }
+            group.add(item);
+        }
+        List<InstantMessage> messages = new ArrayList<>();
+        boolean result;
+        for (List<Request> items : groups.values()) {
+            if (items.size() == 1) {
+                result = items.get(0).chatBox.insertMessage(items.get(0).iMsg);
+            } else {
+                messages.clear();
+                for (Request item : items) {
+                    messages.add(item.iMsg);
+                }
+                result = items.get(0).chatBox.insertMessages(messages);
+            }
+            for (Request item : items) {
+                item.result = result;
+            }
+        }
+        for (Request item : requests) {
+            if (item.original != null) {
+                item.result = item.original.result;
+            }
+            if (item.result && item.callback != null) {
+                item.callback.run();
+            }
+        }
+    }
+
+    /**
+     *  Save message into the conversation
+     *  (in a burst, it will be saved when the burst ends)
+     *
+     * @param iMsg - instant message
+     * @param chatBox - conversation
+     * @return false on failed
+     */
+    public boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
+        return save(new Request(chatBox, iMsg, null));
+    }
+
+    /**
+     *  Save incoming message into its conversation
+     *  (in a burst, it will be saved when the burst ends)
+     *
+     * @param iMsg - instant message
+     * @param callback - run after saved
+     * @return false on failed
+     */
+    public boolean saveMessage(InstantMessage iMsg, Runnable callback) {
         Conversation chatBox = getConversation(iMsg);
         if (chatBox == null) {
             return false;
         }
-        return chatBox.insertMessage(iMsg);
+        return save(new Request(chatBox, iMsg, callback));
     }
 
+    public boolean saveMessage(InstantMessage iMsg) {
+        return saveMessage(iMsg, null);
+    }
+
+    // conversation of the message which the receipt responds to
+    private Conversation getReceiptConversation(InstantMessage iMsg) {
+        IDPool pool = IDPool.getInstance();
+        // envelope of the original message
+        ID receiver = pool.getID(iMsg.content.get("receiver"));
+        if (receiver == null) {
+            // no envelope, the receipt is from the receiver
+            return getConversation(iMsg);
+        }
+        if (receiver.isGroup()) {
+            return getConversation(receiver);
+        }
+        ID group = pool.getID(iMsg.content.getGroup());
+        if (group != null) {
+            return getConversation(group);
+        }
+        // personal chat, the receipt may be from the station
+        return getConversation(receiver);
+    }
+
+    /**
+     *  Update state of the message which the receipt responds to,
+     *  in the conversation of that message (not the receipt's sender)
+     *
+     * @param iMsg - receipt command message
+     * @return false on message not found
+     */
     public boolean saveReceipt(InstantMessage iMsg) {
-        Conversation chatBox = getConversation(iMsg);
+        Conversation chatBox = getReceiptConversation(iMsg);
         if (chatBox == null) {
             return false;
         }
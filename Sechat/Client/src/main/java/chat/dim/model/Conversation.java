@@ -28,6 +28,7 @@ package chat.dim.model;
 import java.util.Date;
 import java.util.List;
 
+import chat.dim.Content;
 import chat.dim.Entity;
 import chat.dim.Group;
 import chat.dim.ID;
@@ -101,16 +102,9 @@ public class Conversation {
     public InstantMessage getLastVisibleMessage() {
         int count = numberOfMessages();
         InstantMessage iMsg;
-        int msgType;
         for (int index = count - 1; index >= 0; --index) {
             iMsg = messageAtIndex(index);
-            msgType = iMsg.content.type;
-            if (ContentType.TEXT.value == msgType ||
-                    ContentType.FILE.value == msgType ||
-                    ContentType.IMAGE.value == msgType ||
-                    ContentType.AUDIO.value == msgType ||
-                    ContentType.VIDEO.value == msgType ||
-                    ContentType.PAGE.value == msgType) {
+            if (isVisible(iMsg.content)) {
                 // got it
                 return iMsg;
             }
@@ -118,6 +112,16 @@ public class Conversation {
         return null;
     }
 
+    public static boolean isVisible(Content content) {
+        int msgType = content.type;
+        return ContentType.TEXT.value == msgType ||
+                ContentType.FILE.value == msgType ||
+                ContentType.IMAGE.value == msgType ||
+                ContentType.AUDIO.value == msgType ||
+                ContentType.VIDEO.value == msgType ||
+                ContentType.PAGE.value == msgType;
+    }
+
     // interfaces for ConversationDataSource
 
     public int numberOfMessages() {
@@ -128,10 +132,18 @@ public class Conversation {
         return dataSource.messageAtIndex(index, this);
     }
 
+    public List<InstantMessage> messages(int from, int count) {
+        return dataSource.messages(from, count, this);
+    }
+
     public boolean insertMessage(InstantMessage iMsg) {
         return dataSource.insertMessage(iMsg, this);
     }
 
+    public boolean insertMessages(List<InstantMessage> messages) {
+        return dataSource.insertMessages(messages, this);
+    }
+
     public boolean removeMessage(InstantMessage iMsg) {
         return dataSource.removeMessage(iMsg, this);
     }
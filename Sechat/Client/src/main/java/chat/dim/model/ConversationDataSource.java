@@ -25,6 +25,8 @@
  */
 package chat.dim.model;
 
+import java.util.List;
+
 import chat.dim.ID;
 import chat.dim.InstantMessage;
 
@@ -82,6 +84,16 @@ public interface ConversationDataSource {
      */
     InstantMessage messageAtIndex(int index, Conversation chatBox);
 
+    /**
+     *  Get messages in range of this conversation
+     *
+     * @param from - start index
+     * @param count - max count of messages
+     * @param chatBox - conversation instance
+     * @return instant messages
+     */
+    List<InstantMessage> messages(int from, int count, Conversation chatBox);
+
     /**
      *  Save the new message to local storage
      *
@@ -91,6 +103,15 @@ public interface ConversationDataSource {
      */
     boolean insertMessage(InstantMessage iMsg, Conversation chatBox);
 
+    /**
+     *  Save the new messages to local storage at once
+     *
+     * @param messages - instant messages in the same conversation
+     * @param chatBox - conversation instance
+     * @return true on success
+     */
+    boolean insertMessages(List<InstantMessage> messages, Conversation chatBox);
+
     /**
      *  Delete the message
      *
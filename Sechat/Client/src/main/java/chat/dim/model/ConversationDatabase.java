@@ -26,6 +26,7 @@
 package chat.dim.model;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -36,11 +37,15 @@ import chat.dim.Content;
 import chat.dim.ID;
 import chat.dim.InstantMessage;
 import chat.dim.Message;
+import chat.dim.User;
 import chat.dim.cpu.AnyContentProcessor;
 import chat.dim.database.ConversationTable;
+import chat.dim.database.IOThrottle;
 import chat.dim.database.MessageTable;
+import chat.dim.database.SearchTable;
 import chat.dim.notification.NotificationCenter;
 import chat.dim.protocol.Command;
+import chat.dim.utils.Log;
 
 public class ConversationDatabase implements ConversationDataSource {
     private static final ConversationDatabase ourInstance = new ConversationDatabase();
@@ -53,10 +58,26 @@ public class ConversationDatabase implements ConversationDataSource {
     // constants
     public static final String MessageUpdated = "MessageUpdated";
     public static final String MessageCleaned = "MessageCleaned";
+    public static final String SearchIndexBuilt = "SearchIndexBuilt";
+
+    // conversations without new message for 7 days will be compressed
+    public static long COLD_AGE = 7 * 24 * 3600 * 1000L;
+
+    // retention of messages: max age in milliseconds, max count in each conversation (0 for unlimited)
+    public static long MAX_MESSAGE_AGE = 0;
+    public static int MAX_MESSAGES = 0;
+
+    // I/O budget of background compaction (bytes per second)
+    public static long COMPACTION_RATE = 2 * 1024 * 1024;
 
     private ConversationTable conversationTable = new ConversationTable();
     private MessageTable messageTable = new MessageTable();
 
+    private IOThrottle compaction = null;
+    private Map<String, Object> compactionReport = null;
+
+    private boolean indexing = false;
+
     public String getTimeString(Message msg) {
         Date time = msg.envelope.time;
         if (time == null) {
@@ -82,7 +103,16 @@ public class ConversationDatabase implements ConversationDataSource {
 
     @Override
     public int numberOfConversations() {
-        return conversationTable.numberOfConversations();
+        int count = conversationTable.numberOfConversations();
+        List<ID> pending = conversationTable.pendingConversations();
+        if (pending != null) {
+            // build summaries for conversations scanned from message directories
+            Amanuensis clerk = Amanuensis.getInstance();
+            for (ID identifier : pending) {
+                updateSummary(clerk.getConversation(identifier));
+            }
+        }
+        return count;
     }
 
     @Override
@@ -92,16 +122,296 @@ public class ConversationDatabase implements ConversationDataSource {
 
     @Override
     public boolean removeConversationAtIndex(int index) {
-        return conversationTable.removeConversationAtIndex(index);
+        return removeConversation(conversationAtIndex(index));
     }
 
     @Override
     public boolean removeConversation(ID identifier) {
-        return conversationTable.removeConversation(identifier);
+        if (!conversationTable.removeConversation(identifier)) {
+            return false;
+        }
+        // remove the messages too, or the conversation will be scanned out again
+        return messageTable.removeMessages(identifier);
+    }
+
+    // summary
+
+    /**
+     *  Get last message time of conversation from summary index
+     *
+     * @param identifier - conversation ID
+     * @return last time
+     */
+    public Date getLastTime(ID identifier) {
+        Date time = conversationTable.getLastTime(identifier);
+        return time == null ? new Date(0) : time;
+    }
+
+    /**
+     *  Get text of last visible message in conversation from summary index
+     *
+     * @param identifier - conversation ID
+     * @return message text
+     */
+    public String getLastText(ID identifier) {
+        return conversationTable.getLastText(identifier);
+    }
+
+    private void updateSummary(Conversation chatBox) {
+        if (chatBox == null) {
+            return;
+        }
+        // no visible message left, clear the old text
+        String text = "";
+        InstantMessage iMsg = chatBox.getLastVisibleMessage();
+        if (iMsg != null) {
+            text = getContentText(iMsg.content);
+        }
+        conversationTable.refreshConversation(chatBox.identifier, chatBox.getLastTime(), text);
+    }
+
+    private void updateSummary(InstantMessage iMsg, Conversation chatBox) {
+        Date time = iMsg.envelope.time;
+        if (time == null) {
+            time = new Date();
+        }
+        String text = null;
+        int unread = 0;
+        if (Conversation.isVisible(iMsg.content)) {
+            text = getContentText(iMsg.content);
+            if (isReceived(iMsg)) {
+                unread = 1;
+            }
+        }
+        conversationTable.updateConversation(chatBox.identifier, time, text, unread);
+    }
+
+    // summary with the last message time and the last visible message text
+    private void updateSummary(List<InstantMessage> messages, Conversation chatBox) {
+        Date time = null;
+        String text = null;
+        int unread = 0;
+        InstantMessage iMsg;
+        for (int index = messages.size() - 1; index >= 0; --index) {
+            iMsg = messages.get(index);
+            if (time == null || (iMsg.envelope.time != null && iMsg.envelope.time.after(time))) {
+                time = iMsg.envelope.time;
+            }
+            if (!Conversation.isVisible(iMsg.content)) {
+                continue;
+            }
+            if (text == null) {
+                text = getContentText(iMsg.content);
+            }
+            if (isReceived(iMsg)) {
+                ++unread;
+            }
+        }
+        conversationTable.updateConversation(chatBox.identifier, time == null ? new Date() : time, text, unread);
+    }
+
+    // message not sent by local users
+    private static boolean isReceived(InstantMessage iMsg) {
+        Facebook facebook = Facebook.getInstance();
+        ID sender = facebook.getID(iMsg.envelope.sender);
+        List<User> users = facebook.getLocalUsers();
+        if (users != null) {
+            for (User user : users) {
+                if (user.identifier.equals(sender)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Get count of received messages not read in conversation from summary index
+     *
+     * @param identifier - conversation ID
+     * @return unread count
+     */
+    public int getUnreadCount(ID identifier) {
+        return conversationTable.getUnreadCount(identifier);
+    }
+
+    /**
+     *  Clear unread count of conversation (when the user opens it)
+     *
+     * @param chatBox - conversation instance
+     * @return false on not changed
+     */
+    public boolean markRead(Conversation chatBox) {
+        return conversationTable.markRead(chatBox.identifier);
     }
 
     // messages
 
+    /**
+     *  Set the budget of decoded messages kept in memory (for all conversations)
+     *
+     * @param capacity - max count of cached messages
+     */
+    public void setMessageCacheCapacity(long capacity) {
+        messageTable.setCacheCapacity(capacity);
+    }
+
+    /**
+     *  Get message cache info: capacity, size, hits, misses, evictions
+     *
+     * @return statistics
+     */
+    public Map<String, Object> getMessageCacheStatistics() {
+        return messageTable.getCacheStatistics();
+    }
+
+    /**
+     *  Set storage format for new messages
+     *
+     * @param format - MessageTable.FORMAT_JSON or MessageTable.FORMAT_BINARY
+     */
+    public void setMessageFormat(int format) {
+        messageTable.setRecordFormat(format);
+    }
+
+    /**
+     *  Compact message logs in background thread (call it when the app is idle):
+     *  drop the removed messages and the messages out of retention, and then
+     *  compress the cold conversations wholly, the others only the old segments
+     */
+    public void compactMessages() {
+        final IOThrottle throttle;
+        synchronized (this) {
+            if (compaction != null) {
+                return;
+            }
+            compaction = throttle = new IOThrottle(COMPACTION_RATE);
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(throttle);
+                } finally {
+                    synchronized (ConversationDatabase.this) {
+                        compaction = null;
+                    }
+                }
+            }
+        }, "CompactMessages");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void compact(IOThrottle throttle) {
+        // list the conversations here (not on the caller's thread)
+        List<ID> conversations = new ArrayList<>();
+        int count = numberOfConversations();
+        for (int index = 0; index < count; ++index) {
+            conversations.add(conversationAtIndex(index));
+        }
+        long start = System.currentTimeMillis();
+        long cold = start - COLD_AGE;
+        long expired = MAX_MESSAGE_AGE > 0 ? start - MAX_MESSAGE_AGE : 0;
+        long reclaimed = 0;
+        long saved = 0;
+        int compacted = 0;
+        long bytes;
+        for (ID identifier : conversations) {
+            if (throttle.isCancelled()) {
+                break;
+            }
+            bytes = messageTable.compactMessages(identifier, expired, MAX_MESSAGES, throttle);
+            if (bytes != 0) {
+                reclaimed += bytes;
+                ++compacted;
+                updateSummary(Amanuensis.getInstance().getConversation(identifier));
+                // message indexes changed, reload
+                postMessagesCompactedNotification(identifier);
+            }
+            if (throttle.isCancelled()) {
+                break;
+            }
+            saved += messageTable.compressMessages(identifier, getLastTime(identifier).getTime() < cold);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Map<String, Object> report = new HashMap<>();
+        report.put("conversations", compacted);
+        report.put("reclaimed", reclaimed);
+        report.put("compressed", saved);
+        report.put("io", throttle.getTotal());
+        report.put("time", elapsed);
+        report.put("cancelled", throttle.isCancelled());
+        Log.info("message logs compacted: " + compacted + "/" + conversations.size() + " conversations, "
+                + reclaimed + " bytes reclaimed, " + saved + " bytes saved by compression, "
+                + elapsed + " ms" + (throttle.isCancelled() ? " (cancelled)" : ""));
+        synchronized (this) {
+            compactionReport = report;
+        }
+    }
+
+    /**
+     *  Stop the background compaction (when the app becomes active)
+     */
+    public synchronized void stopCompaction() {
+        if (compaction != null) {
+            compaction.cancel();
+        }
+    }
+
+    /**
+     *  Get report of the last compaction:
+     *      conversations, reclaimed, compressed, io (bytes), time (ms), cancelled
+     *
+     * @return statistics, null for never run
+     */
+    public synchronized Map<String, Object> getCompactionReport() {
+        return compactionReport;
+    }
+
+    /**
+     *  Search text messages in all conversations,
+     *  the whole history will be indexed in background when searching first time
+     *  (results are partial until 'SearchIndexBuilt' posted)
+     *
+     * @param keywords - query text
+     * @param limit - max results
+     * @return conversation IDs and message positions, newest first
+     */
+    public List<SearchTable.Hit> searchMessages(String keywords, int limit) {
+        if (!messageTable.isSearchIndexBuilt()) {
+            buildSearchIndex();
+        }
+        return messageTable.searchMessages(keywords, limit);
+    }
+
+    private synchronized void buildSearchIndex() {
+        if (indexing) {
+            return;
+        }
+        indexing = true;
+        final List<ID> conversations = new ArrayList<>();
+        int count = numberOfConversations();
+        for (int index = 0; index < count; ++index) {
+            conversations.add(conversationAtIndex(index));
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                messageTable.buildSearchIndex(conversations);
+                synchronized (ConversationDatabase.this) {
+                    indexing = false;
+                }
+                NotificationCenter nc = NotificationCenter.getInstance();
+                nc.postNotification(SearchIndexBuilt, ConversationDatabase.this, new HashMap<String, Object>());
+            }
+        }, "BuildSearchIndex");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public List<InstantMessage> messagesInConversation(Conversation chatBox) {
         return messageTable.messagesInConversation(chatBox);
     }
@@ -116,6 +426,11 @@ public class ConversationDatabase implements ConversationDataSource {
         return messageTable.messageAtIndex(index, chatBox);
     }
 
+    @Override
+    public List<InstantMessage> messages(int from, int count, Conversation chatBox) {
+        return messageTable.messages(from, count, chatBox);
+    }
+
     private void postMessageUpdatedNotification(InstantMessage iMsg, Conversation chatBox) {
         Map<String, Object> userInfo = new HashMap<>();
         userInfo.put("ID", chatBox.identifier);
@@ -124,19 +439,72 @@ public class ConversationDatabase implements ConversationDataSource {
         nc.postNotification(MessageUpdated, this, userInfo);
     }
 
+    private void postMessagesUpdatedNotification(List<InstantMessage> messages, Conversation chatBox) {
+        Map<String, Object> userInfo = new HashMap<>();
+        userInfo.put("ID", chatBox.identifier);
+        userInfo.put("msg", messages.get(messages.size() - 1));
+        userInfo.put("messages", messages);
+        NotificationCenter nc = NotificationCenter.getInstance();
+        nc.postNotification(MessageUpdated, this, userInfo);
+    }
+
+    private void postMessagesCompactedNotification(ID identifier) {
+        Map<String, Object> userInfo = new HashMap<>();
+        userInfo.put("ID", identifier);
+        userInfo.put("compacted", true);
+        NotificationCenter nc = NotificationCenter.getInstance();
+        nc.postNotification(MessageUpdated, this, userInfo);
+    }
+
+    private void postMessageStateNotification(int index, Conversation chatBox) {
+        Map<String, Object> userInfo = new HashMap<>();
+        userInfo.put("ID", chatBox.identifier);
+        userInfo.put("msg", messageTable.messageAtIndex(index, chatBox));
+        userInfo.put("index", index);
+        userInfo.put("state", messageTable.getMessageState(index, chatBox));
+        NotificationCenter nc = NotificationCenter.getInstance();
+        nc.postNotification(MessageUpdated, this, userInfo);
+    }
+
+    /**
+     *  Get delivery state of message
+     *
+     * @param index - message position
+     * @param chatBox - conversation instance
+     * @return MessageTable.STATE_DELIVERED, STATE_RECEIVED, STATE_READ; 0 for none
+     */
+    public byte getMessageState(int index, Conversation chatBox) {
+        return messageTable.getMessageState(index, chatBox);
+    }
+
     @Override
     public boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
         boolean OK = messageTable.insertMessage(iMsg, chatBox);
         if (OK) {
+            updateSummary(iMsg, chatBox);
             postMessageUpdatedNotification(iMsg, chatBox);
         }
         return OK;
     }
 
+    @Override
+    public boolean insertMessages(List<InstantMessage> messages, Conversation chatBox) {
+        if (messages.size() == 0) {
+            return true;
+        }
+        boolean OK = messageTable.insertMessages(messages, chatBox);
+        if (OK) {
+            updateSummary(messages, chatBox);
+            postMessagesUpdatedNotification(messages, chatBox);
+        }
+        return OK;
+    }
+
     @Override
     public boolean removeMessage(InstantMessage iMsg, Conversation chatBox) {
         boolean OK = messageTable.removeMessage(iMsg, chatBox);
         if (OK) {
+            updateSummary(chatBox);
             postMessageUpdatedNotification(iMsg, chatBox);
         }
         return OK;
@@ -146,6 +514,7 @@ public class ConversationDatabase implements ConversationDataSource {
     public boolean withdrawMessage(InstantMessage iMsg, Conversation chatBox) {
         boolean OK = messageTable.withdrawMessage(iMsg, chatBox);
         if (OK) {
+            updateSummary(chatBox);
             postMessageUpdatedNotification(iMsg, chatBox);
         }
         return OK;
@@ -153,10 +522,12 @@ public class ConversationDatabase implements ConversationDataSource {
 
     @Override
     public boolean saveReceipt(InstantMessage receipt, Conversation chatBox) {
-        boolean OK = messageTable.saveReceipt(receipt, chatBox);
-        if (OK) {
-            postMessageUpdatedNotification(receipt, chatBox);
+        int index = messageTable.saveReceipt(receipt, chatBox);
+        if (index < 0) {
+            return false;
         }
-        return OK;
+        // notify only the message which state changed
+        postMessageStateNotification(index, chatBox);
+        return true;
     }
 }
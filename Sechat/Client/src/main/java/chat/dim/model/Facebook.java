@@ -44,9 +44,11 @@ public class Facebook extends chat.dim.common.Facebook {
             // broadcast ID has not meta
             return null;
         }
+        // queried already when the miss was cached
+        boolean missing = isMetaMissing(identifier);
         // try from database
         Meta meta = super.getMeta(identifier);
-        if (meta != null) {
+        if (meta != null || missing) {
             return meta;
         }
         // query from DIM network
@@ -57,9 +59,11 @@ public class Facebook extends chat.dim.common.Facebook {
 
     @Override
     public Profile getProfile(ID identifier) {
+        // queried already when the miss was cached
+        boolean missing = isProfileMissing(identifier);
         // try from database
         Profile profile = super.getProfile(identifier);
-        if (profile != null) {
+        if (profile != null || missing) {
             return profile;
         }
         // query from DIM network
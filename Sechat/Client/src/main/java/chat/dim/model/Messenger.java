@@ -68,7 +68,7 @@ public class Messenger extends chat.dim.common.Messenger {
     public Server server = null;
 
     @Override
-    public boolean saveMessage(InstantMessage iMsg) {
+    public boolean saveMessage(final InstantMessage iMsg) {
         Content content = iMsg.content;
         // TODO: check message type
         //       only save normal message and group commands
@@ -101,6 +101,12 @@ public class Messenger extends chat.dim.common.Messenger {
             return true;
         }
 
+        if (content instanceof ReceiptCommand && content.get("resend_key") != null) {
+            // key request will be processed by CPUs
+            // no need to save it here
+            return true;
+        }
+
         if (content instanceof InviteCommand) {
             // send keys again
             ID me = getFacebook().getID(iMsg.envelope.receiver);
@@ -113,13 +119,24 @@ public class Messenger extends chat.dim.common.Messenger {
             return true;
         }
 
+        if (isDuplicated(iMsg)) {
+            // saved before, respond again
+            return true;
+        }
+
         Amanuensis clerk = Amanuensis.getInstance();
 
         if (content instanceof ReceiptCommand) {
             return clerk.saveReceipt(iMsg);
-        } else {
-            return clerk.saveMessage(iMsg);
         }
+        // remembered after saved (when the burst ends)
+        final String signatureKey = takeSignatureKey(iMsg);
+        return clerk.saveMessage(iMsg, new Runnable() {
+            @Override
+            public void run() {
+                markSaved(iMsg, signatureKey);
+            }
+        });
     }
 
     @Override
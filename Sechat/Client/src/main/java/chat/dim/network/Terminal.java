@@ -33,6 +33,9 @@ import java.util.Map;
 import chat.dim.ID;
 import chat.dim.Profile;
 import chat.dim.User;
+import chat.dim.database.StorageWriter;
+import chat.dim.model.Amanuensis;
+import chat.dim.model.ConversationDatabase;
 import chat.dim.model.Facebook;
 import chat.dim.model.Messenger;
 import chat.dim.model.NetworkDatabase;
@@ -48,6 +51,10 @@ public class Terminal implements StationDelegate {
 
     private List<User> users = null;
 
+    // packages received, waiting for the processing thread
+    private final List<byte[]> incoming = new ArrayList<>();
+    private Thread processor = null;
+
     public Terminal() {
         super();
     }
@@ -179,9 +186,16 @@ public class Terminal implements StationDelegate {
             // pause the server
             server.pause();
         }
+        // write all pending data before the app is suspended
+        StorageWriter.getInstance().flush();
+        // compact and compress messages while idle
+        ConversationDatabase.getInstance().compactMessages();
     }
 
     public void enterForeground() {
+        // give the storage back to the foreground
+        ConversationDatabase.getInstance().stopCompaction();
+
         Server server = getCurrentServer();
         if (server != null) {
             // resume the server
@@ -201,15 +215,80 @@ public class Terminal implements StationDelegate {
 
     @Override
     public void onReceivePackage(byte[] data, Station server) {
-        byte[] response;
+        synchronized (incoming) {
+            incoming.add(data);
+            if (processor == null) {
+                processor = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processPackages();
+                        } finally {
+                            // started again by the next package
+                            synchronized (incoming) {
+                                processor = null;
+                            }
+                        }
+                    }
+                }, "ProcessPackages");
+                processor.setDaemon(true);
+                processor.start();
+            }
+            incoming.notifyAll();
+        }
+    }
+
+    // take all packages received while processing the last ones, as a burst
+    private void processPackages() {
+        List<byte[]> packages;
+        while (true) {
+            synchronized (incoming) {
+                while (incoming.size() == 0) {
+                    try {
+                        incoming.wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                packages = new ArrayList<>(incoming);
+                incoming.clear();
+            }
+            processPackages(packages);
+        }
+    }
+
+    private void processPackages(List<byte[]> packages) {
+        Amanuensis clerk = Amanuensis.getInstance();
+        int count = packages.size();
+        byte[][] responses = new byte[count][];
+        int[] ends = new int[count];
+        boolean[] results;
+        // messages of the burst will be saved together (per conversation)
+        clerk.beginBurst();
         try {
-            response = messenger.processPackage(data);
-        } catch (NullPointerException e) {
-            e.printStackTrace();
-            response = null;
+            for (int index = 0; index < count; ++index) {
+                try {
+                    responses[index] = messenger.processPackage(packages.get(index));
+                } catch (NullPointerException e) {
+                    e.printStackTrace();
+                }
+                ends[index] = clerk.getBurstSize();
+            }
+        } finally {
+            results = clerk.endBurst();
         }
-        if (response != null && response.length > 0) {
-            currentServer.star.send(response);
+        // respond only the packages whose messages are saved
+        int start = 0;
+        boolean saved;
+        for (int index = 0; index < count; ++index) {
+            saved = true;
+            for (int pos = start; pos < ends[index]; ++pos) {
+                saved &= results[pos];
+            }
+            start = ends[index];
+            if (saved && responses[index] != null && responses[index].length > 0) {
+                currentServer.star.send(responses[index]);
+            }
         }
     }
 
@@ -0,0 +1,81 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.format.JSON;
+
+/**
+ *  Benchmark: binary records vs JsON records
+ */
+public class BinaryCodecBenchmark {
+
+    public static void main(String[] args) {
+        int[] sizes = {10000, 100000};
+        for (int count : sizes) {
+            List<byte[]> jsonRecords = new ArrayList<>(count);
+            List<byte[]> binaryRecords = new ArrayList<>(count);
+            long jsonSize = 0, binarySize = 0;
+            Map<String, Object> msg;
+            for (int index = 0; index < count; ++index) {
+                msg = sampleMessage(index);
+                jsonRecords.add(JSON.encode(msg));
+                binaryRecords.add(BinaryCodec.encode(msg));
+                jsonSize += jsonRecords.get(index).length;
+                binarySize += binaryRecords.get(index).length;
+            }
+            long start = System.currentTimeMillis();
+            for (byte[] data : jsonRecords) {
+                JSON.decode(data);
+            }
+            long jsonTime = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (byte[] data : binaryRecords) {
+                BinaryCodec.decode(data);
+            }
+            long binaryTime = System.currentTimeMillis() - start;
+            System.out.println(count + " messages, JsON: " + jsonSize + " bytes, " + jsonTime + " ms; "
+                    + "binary: " + binarySize + " bytes, " + binaryTime + " ms");
+        }
+    }
+
+    private static Map<String, Object> sampleMessage(int index) {
+        Map<String, Object> content = new LinkedHashMap<>();
+        content.put("type", 1);
+        content.put("sn", 412968873 + index);
+        content.put("text", "Hey guy, message #" + index);
+        Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("sender", "moki@4WDfe3zZ4T7opFSi3iDAKiuTnUHjxmXekk");
+        msg.put("receiver", "hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj");
+        msg.put("time", 1545405083L + index);
+        msg.put("content", content);
+        return msg;
+    }
+}
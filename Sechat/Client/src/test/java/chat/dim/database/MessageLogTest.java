@@ -0,0 +1,208 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.UTF8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 100KB each, 11 records fill the first segment
+    private static final int PAYLOAD_SIZE = 100 * 1024;
+    private static final int COUNT = 20;
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        ExternalStorage.root = folder.getRoot().getPath();
+        dir = new File(folder.getRoot(), "conversation");
+    }
+
+    private static byte[] payload(int index) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < PAYLOAD_SIZE) {
+            sb.append("{\"sn\":").append(index).append(",\"text\":\"message ").append(index).append("\"}");
+        }
+        return UTF8.encode(sb.substring(0, PAYLOAD_SIZE));
+    }
+
+    private MessageLog fill() throws IOException {
+        MessageLog log = new MessageLog(dir.getPath());
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < COUNT; ++i) {
+            payloads.add(payload(i));
+        }
+        log.append(MessageLog.MESSAGE, payloads);
+        return log;
+    }
+
+    private static void check(MessageLog log, int from, int length) throws IOException {
+        List<byte[]> payloads = log.read(from, length);
+        assertEquals(length, payloads.size());
+        for (int i = 0; i < length; ++i) {
+            assertArrayEquals("message " + (from + i), payload(from + i), payloads.get(i));
+        }
+    }
+
+    @Test
+    public void rollsOverSegments() throws IOException {
+        MessageLog log = fill();
+        // readable before written
+        assertEquals(COUNT, log.count());
+        check(log, 0, COUNT);
+
+        log.flush();
+        assertTrue(new File(dir, "messages.0.log").exists());
+        assertTrue(new File(dir, "messages.1.log").exists());
+        assertFalse(new File(dir, "messages.2.log").exists());
+        assertTrue(new File(dir, "messages.0.log").length() >= MessageLog.SEGMENT_SIZE);
+        assertEquals(COUNT * 8, new File(dir, "messages.idx").length());
+        check(log, 0, COUNT);
+    }
+
+    @Test
+    public void reopensFromFiles() throws IOException {
+        fill().flush();
+
+        MessageLog log = new MessageLog(dir.getPath());
+        assertEquals(COUNT, log.count());
+        // across the segment boundary
+        check(log, 8, 6);
+        check(log, 0, COUNT);
+
+        // appending continues in the last segment
+        log.append(MessageLog.MESSAGE, payload(COUNT));
+        log.flush();
+        assertFalse(new File(dir, "messages.2.log").exists());
+        log = new MessageLog(dir.getPath());
+        assertEquals(COUNT + 1, log.count());
+        check(log, COUNT - 1, 2);
+    }
+
+    @Test
+    public void dropsTornRecordOnReopen() throws IOException {
+        fill().flush();
+        File last = new File(dir, "messages.1.log");
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+
+        MessageLog log = new MessageLog(dir.getPath());
+        assertEquals(COUNT - 1, log.count());
+        check(log, 0, COUNT - 1);
+
+        // the torn record is overwritten
+        log.append(MessageLog.MESSAGE, payload(COUNT - 1));
+        log.flush();
+        log = new MessageLog(dir.getPath());
+        assertEquals(COUNT, log.count());
+        check(log, 0, COUNT);
+    }
+
+    @Test
+    public void rebuildsLostIndex() throws IOException {
+        fill().flush();
+        assertTrue(new File(dir, "messages.idx").delete());
+
+        MessageLog log = new MessageLog(dir.getPath());
+        assertEquals(COUNT, log.count());
+        check(log, 0, COUNT);
+        log.flush();
+        assertEquals(COUNT * 8, new File(dir, "messages.idx").length());
+    }
+
+    @Test
+    public void indexesMessagesOnly() throws IOException {
+        MessageLog log = new MessageLog(dir.getPath());
+        log.append(MessageLog.MESSAGE, payload(0));
+        log.append(MessageLog.TOMBSTONE, new byte[9]);
+        log.append(MessageLog.MESSAGE, payload(1));
+        assertEquals(2, log.count());
+        assertEquals(1, log.readAll(MessageLog.TOMBSTONE).size());
+        log.flush();
+
+        log = new MessageLog(dir.getPath());
+        assertEquals(2, log.count());
+        check(log, 0, 2);
+        assertEquals(1, log.readAll(MessageLog.TOMBSTONE).size());
+        assertEquals(2, log.readAll(MessageLog.MESSAGE).size());
+    }
+
+    @Test
+    public void readsCompressedSegments() throws IOException {
+        MessageLog log = fill();
+        assertTrue(log.compress(true) > 0);
+        log.flush();
+        assertTrue(new File(dir, "messages.0.z").exists());
+        assertTrue(new File(dir, "messages.1.z").exists());
+        assertFalse(new File(dir, "messages.0.log").exists());
+        assertFalse(new File(dir, "messages.1.log").exists());
+        check(log, 0, COUNT);
+
+        // new records go to a new segment
+        log.append(MessageLog.MESSAGE, payload(COUNT));
+        log.flush();
+        assertTrue(new File(dir, "messages.2.log").exists());
+
+        log = new MessageLog(dir.getPath());
+        assertEquals(COUNT + 1, log.count());
+        check(log, 0, COUNT + 1);
+    }
+
+    @Test
+    public void clearsAllFiles() throws IOException {
+        MessageLog log = fill();
+        log.flush();
+        assertTrue(MessageLog.exists(dir.getPath()));
+        log.clear();
+        assertFalse(MessageLog.exists(dir.getPath()));
+        assertFalse(new File(dir, "messages.idx").exists());
+        assertEquals(0, log.count());
+    }
+}
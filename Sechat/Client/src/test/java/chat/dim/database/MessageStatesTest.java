@@ -0,0 +1,159 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import chat.dim.filesys.ExternalStorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageStatesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int COUNT = 10;
+
+    private String dir;
+    private MessageStates states;
+
+    @Before
+    public void setUp() throws IOException {
+        ExternalStorage.root = folder.getRoot().getPath();
+        dir = folder.newFolder("conversation").getPath();
+        states = new MessageStates(dir);
+        for (int pos = 0; pos < COUNT; ++pos) {
+            states.add(pos, 1000 + pos);
+        }
+        // positions: 0 1 [2] [3] 4 5 6 [7] 8 9
+        assertTrue(states.markRemoved(2, MessageStates.REMOVED));
+        assertTrue(states.markRemoved(7, MessageStates.WITHDRAWN));
+        assertTrue(states.markRemoved(3, MessageStates.REMOVED));
+    }
+
+    private static void checkMapping(MessageStates states) throws IOException {
+        int[] visible = {0, 1, 4, 5, 6, 8, 9};
+        assertEquals(COUNT, states.count());
+        assertEquals(visible.length, states.visibleCount());
+        for (int index = 0; index < visible.length; ++index) {
+            assertEquals("index " + index, visible[index], states.positionAt(index));
+            assertEquals("position " + visible[index], index, states.indexOf(visible[index]));
+        }
+        assertTrue(states.isRemoved(2));
+        assertTrue(states.isRemoved(3));
+        assertTrue(states.isRemoved(7));
+        assertFalse(states.isRemoved(4));
+        assertEquals(MessageStates.REMOVED, states.getFlags(2));
+        assertEquals(MessageStates.WITHDRAWN, states.getFlags(7));
+        assertEquals(0, states.getFlags(8));
+    }
+
+    @Test
+    public void mapsVisibleIndex() throws IOException {
+        checkMapping(states);
+        // removed once only
+        assertFalse(states.markRemoved(2, MessageStates.WITHDRAWN));
+        assertEquals(MessageStates.REMOVED, states.getFlags(2));
+        assertFalse(states.markRemoved(COUNT, MessageStates.REMOVED));
+    }
+
+    @Test
+    public void mapsAllRemoved() throws IOException {
+        MessageStates other = new MessageStates(folder.newFolder("other").getPath());
+        for (int pos = 0; pos < 3; ++pos) {
+            other.add(pos, 2000 + pos);
+        }
+        other.markRemoved(0, MessageStates.REMOVED);
+        other.markRemoved(1, MessageStates.REMOVED);
+        assertEquals(1, other.visibleCount());
+        assertEquals(2, other.positionAt(0));
+        assertEquals(0, other.indexOf(2));
+        other.markRemoved(2, MessageStates.REMOVED);
+        assertEquals(0, other.visibleCount());
+    }
+
+    @Test
+    public void keepsSerialNumbersOfRemoved() throws IOException {
+        // the position is not reused
+        assertEquals(2, states.positionOf(1002));
+        assertEquals(1002, states.getSerialNumber(2));
+        assertEquals(-1, states.positionOf(999));
+        states.add(COUNT, 1000 + COUNT);
+        assertEquals(COUNT + 1, states.count());
+        assertEquals(COUNT, states.positionAt(7));
+    }
+
+    @Test
+    public void keepsDeliveryStateWithFlags() throws IOException {
+        assertTrue(states.setState(7, (byte) 2));
+        assertEquals(2, states.getState(7));
+        assertEquals(MessageStates.WITHDRAWN, states.getFlags(7));
+        // never goes back
+        assertFalse(states.setState(7, (byte) 1));
+        assertTrue(states.markRemoved(8, MessageStates.REMOVED));
+        assertEquals(0, states.getState(8));
+    }
+
+    @Test
+    public void reopensFromFile() throws IOException {
+        states.setState(7, (byte) 3);
+        states.flush();
+        assertEquals(COUNT * 9, new File(dir, "messages.sn").length());
+
+        MessageStates other = new MessageStates(dir);
+        checkMapping(other);
+        assertEquals(3, other.getState(7));
+        assertEquals(7, other.positionOf(1007));
+    }
+
+    @Test
+    public void dropsTombstonesOnTruncate() throws IOException {
+        states.truncate(5);
+        assertEquals(5, states.count());
+        assertEquals(3, states.visibleCount());
+        assertEquals(4, states.positionAt(2));
+        assertEquals(-1, states.positionOf(1007));
+        states.flush();
+
+        MessageStates other = new MessageStates(dir);
+        assertEquals(5, other.count());
+        assertEquals(3, other.visibleCount());
+        assertFalse(other.isRemoved(7));
+
+        other.clear();
+        assertEquals(0, other.count());
+        assertEquals(0, other.visibleCount());
+    }
+}
@@ -0,0 +1,98 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.File;
+import java.util.Random;
+
+import chat.dim.ID;
+import chat.dim.filesys.ExternalStorage;
+
+/**
+ *  Benchmark: searching a large index (short prefixes and single CJK characters)
+ */
+public class SearchTableBenchmark {
+
+    private static final String[] WORDS = {
+            "hello", "help", "here", "have", "home", "how", "happy", "hat", "house", "hi",
+            "world", "with", "when", "what", "will", "word", "work", "water", "way", "we",
+            "see", "you", "good", "morning", "night", "time", "today", "tomorrow", "yes", "no",
+    };
+    private static final String CJK = "你好世界早上晚安今天明天我们他们中国朋友消息时间";
+
+    private static String sampleText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int count = 3 + random.nextInt(6);
+        for (int i = 0; i < count; ++i) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(50)).append(' ');
+        }
+        int start = random.nextInt(CJK.length() - 4);
+        sb.append(CJK, start, start + 2 + random.nextInt(3));
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "search-benchmark");
+        ExternalStorage.root = dir.getPath();
+        ID[] conversations = {
+                ID.getInstance("moki@4WDfe3zZ4T7opFSi3iDAKiuTnUHjxmXekk"),
+                ID.getInstance("hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj"),
+                ID.getInstance("moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ"),
+        };
+        int count = 200000;
+        Random random = new Random(2019);
+        SearchTable table = new SearchTable();
+        table.beginBuild();
+        // built conversation by conversation, so the documents are not in time order
+        int perConversation = count / conversations.length;
+        for (int c = 0; c < conversations.length; ++c) {
+            for (int pos = 0; pos < perConversation; ++pos) {
+                table.addMessage(conversations[c], pos, 1545405083000L + pos * 60000L + c, sampleText(random));
+            }
+        }
+        table.endBuild();
+        long start = System.nanoTime();
+        table.search("hello", 20);
+        System.out.println("first search (renumbering " + count + " documents): "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        String[] queries = {"h", "he", "w", "hello world", "好", "界", "世界", "hello 你好", "zzz"};
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        for (String query : queries) {
+            // warm up
+            for (int i = 0; i < rounds / 10; ++i) {
+                table.search(query, 20);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; ++i) {
+                table.search(query, 20);
+            }
+            System.out.println("\"" + query + "\": " + (System.nanoTime() - start) / rounds / 1000 + " us");
+        }
+        StorageWriter.getInstance().flush();
+        System.out.println(table.getStatistics());
+    }
+}
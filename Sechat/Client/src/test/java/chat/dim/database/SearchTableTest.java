@@ -0,0 +1,219 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.ID;
+import chat.dim.filesys.ExternalStorage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchTableTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ID moky = ID.getInstance("moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ");
+    private final ID hulk = ID.getInstance("hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj");
+
+    private SearchTable table;
+
+    @Before
+    public void setUp() {
+        // "{root}/dkd/search.txt"
+        ExternalStorage.root = folder.getRoot().getPath();
+        table = new SearchTable();
+        table.beginBuild();
+        table.addMessage(moky, 0, 3000, "Hello world");
+        table.addMessage(hulk, 0, 1000, "hello there");
+        table.addMessage(moky, 1, 2000, "Help me, 你好世界");
+        table.addMessage(hulk, 1, 4000, "see you");
+        table.endBuild();
+    }
+
+    private static List<String> terms(String text) {
+        return new ArrayList<>(SearchTable.tokenize(text));
+    }
+
+    private List<String> hits(List<SearchTable.Hit> results) {
+        List<String> array = new ArrayList<>();
+        for (SearchTable.Hit hit : results) {
+            array.add((hit.identifier.equals(moky) ? "moky" : "hulk") + "#" + hit.position);
+        }
+        return array;
+    }
+
+    private List<String> search(SearchTable table, String keywords) {
+        return hits(table.search(keywords, 10));
+    }
+
+    private static void flushIndex() {
+        StorageWriter.getInstance().flush();
+    }
+
+    @Test
+    public void splitsWords() {
+        assertEquals(Arrays.asList("hello", "world", "2019"), terms("Hello, World! hello 2019."));
+        assertEquals(Arrays.asList("it", "s", "ok"), terms("it's ok"));
+        assertEquals(0, terms(" ,.!? ").size());
+    }
+
+    @Test
+    public void splitsCJKIntoBigrams() {
+        assertEquals(Arrays.asList("你好", "好世", "世界"), terms("你好世界"));
+        assertEquals(Arrays.asList("好"), terms("好"));
+        assertEquals(Arrays.asList("abc", "你好", "123"), terms("abc你好123"));
+        assertEquals(Arrays.asList("こん", "んに", "にち", "ちは"), terms("こんにちは"));
+        assertTrue(SearchTable.isCJK('中'));
+        assertFalse(SearchTable.isCJK('a'));
+    }
+
+    @Test
+    public void findsNewestFirst() {
+        assertEquals(Arrays.asList("moky#0", "hulk#0"), search(table, "hello"));
+        // prefix of words
+        assertEquals(Arrays.asList("moky#0", "moky#1", "hulk#0"), search(table, "hel"));
+        // all terms must match
+        assertEquals(Arrays.asList("moky#0"), search(table, "he wor"));
+        assertEquals(0, search(table, "hello you").size());
+        assertEquals(Arrays.asList("moky#0"), hits(table.search("hel", 1)));
+    }
+
+    @Test
+    public void findsCJK() {
+        assertEquals(Arrays.asList("moky#1"), search(table, "世界"));
+        assertEquals(Arrays.asList("moky#1"), search(table, "好"));
+        assertEquals(0, search(table, "世人").size());
+    }
+
+    @Test
+    public void skipsRemovedMessages() {
+        table.removeMessage(moky, 0);
+        assertEquals(Arrays.asList("moky#1", "hulk#0"), search(table, "hel"));
+        table.removeMessages(hulk);
+        assertEquals(Arrays.asList("moky#1"), search(table, "hel"));
+        assertEquals(0, search(table, "see").size());
+
+        // indexed again
+        table.addMessage(hulk, 2, 5000, "hello again");
+        assertEquals(Arrays.asList("hulk#2", "moky#1"), search(table, "hel"));
+    }
+
+    @Test
+    public void reloadsFromFile() {
+        table.removeMessage(moky, 0);
+        flushIndex();
+
+        SearchTable other = new SearchTable();
+        assertTrue(other.isBuilt());
+        assertEquals(Arrays.asList("moky#1", "hulk#0"), search(other, "hel"));
+        assertEquals(Arrays.asList("moky#1"), search(other, "你好"));
+    }
+
+    @Test
+    public void rebuildsIndex() {
+        table.beginBuild();
+        assertFalse(table.isBuilt());
+        table.addMessage(hulk, 0, 1000, "hello there");
+        assertEquals(Arrays.asList("hulk#0"), search(table, "hello"));
+        table.endBuild();
+        flushIndex();
+
+        SearchTable other = new SearchTable();
+        assertTrue(other.isBuilt());
+        assertEquals(Arrays.asList("hulk#0"), search(other, "hel"));
+    }
+
+    @Test
+    public void findsCJKAtEndOfBigram() {
+        // "界" is the second character of "世界"
+        assertEquals(Arrays.asList("moky#1"), search(table, "界"));
+        assertEquals(Arrays.asList("moky#1"), search(table, "你"));
+    }
+
+    @Test
+    public void takesMostFrequentTermsOfPrefix() {
+        int expansion = SearchTable.MAX_EXPANSION;
+        SearchTable.MAX_EXPANSION = 2;
+        try {
+            table.addMessage(hulk, 2, 5000, "hat");
+            table.addMessage(hulk, 3, 6000, "hat");
+            table.addMessage(hulk, 4, 7000, "ham");
+            // "hat" (2), "hello" (2) taken; "ham", "help" dropped
+            assertEquals(Arrays.asList("hulk#3", "hulk#2", "moky#0", "hulk#0"), search(table, "h"));
+            assertEquals(Arrays.asList("hulk#4"), search(table, "ham"));
+        } finally {
+            SearchTable.MAX_EXPANSION = expansion;
+        }
+    }
+
+    @Test
+    public void stopsAtLimitFromNewest() {
+        for (int pos = 2; pos < 102; ++pos) {
+            table.addMessage(hulk, pos, 10000 - pos, "hello " + pos);
+        }
+        // indexed in reversed time order
+        assertEquals(Arrays.asList("hulk#2", "hulk#3", "hulk#4"), hits(table.search("hello", 3)));
+        table.addMessage(moky, 2, 20000, "hello again");
+        assertEquals(Arrays.asList("moky#2", "hulk#2"), hits(table.search("hello", 2)));
+    }
+
+    @Test
+    public void rewritesFileWhenMostlyRemoved() {
+        int lines = SearchTable.MIN_REWRITE_LINES;
+        SearchTable.MIN_REWRITE_LINES = 10;
+        try {
+            for (int pos = 2; pos < 22; ++pos) {
+                table.addMessage(hulk, pos, 5000 + pos, "word " + pos);
+            }
+            table.removeMessages(hulk);
+            flushIndex();
+            Map<String, Object> info = table.getStatistics();
+            assertEquals(2, info.get("documents"));
+            assertEquals(0, info.get("removed"));
+            assertEquals(3, info.get("lines"));
+
+            SearchTable other = new SearchTable();
+            assertTrue(other.isBuilt());
+            assertEquals(Arrays.asList("moky#0", "moky#1"), search(other, "hel"));
+            assertEquals(0, search(other, "word").size());
+            assertEquals(3, other.getStatistics().get("lines"));
+        } finally {
+            SearchTable.MIN_REWRITE_LINES = lines;
+        }
+    }
+}
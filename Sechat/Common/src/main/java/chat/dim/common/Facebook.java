@@ -48,6 +48,7 @@ import chat.dim.database.PrivateTable;
 import chat.dim.database.ProfileTable;
 import chat.dim.database.UserTable;
 import chat.dim.protocol.NetworkType;
+import chat.dim.utils.IDPool;
 
 public class Facebook extends chat.dim.Facebook {
     public Facebook() {
@@ -135,6 +136,10 @@ public class Facebook extends chat.dim.Facebook {
         return contactTable.removeContact(contact, user);
     }
 
+    public boolean existsContact(ID contact, ID user) {
+        return contactTable.existsContact(contact, user);
+    }
+
     //-------- Private Key
 
     public boolean savePrivateKey(PrivateKey privateKey, ID identifier) {
@@ -152,6 +157,17 @@ public class Facebook extends chat.dim.Facebook {
         return metaTable.saveMeta(meta, entity);
     }
 
+    /**
+     *  Check whether the meta was not found in local storage recently
+     *  (no need to query it again before the miss expired)
+     *
+     * @param identifier - entity ID
+     * @return true on miss cached
+     */
+    public boolean isMetaMissing(ID identifier) {
+        return metaTable.isMissing(identifier);
+    }
+
     //-------- Profile
 
     @Override
@@ -163,6 +179,17 @@ public class Facebook extends chat.dim.Facebook {
         return profileTable.saveProfile(profile);
     }
 
+    /**
+     *  Check whether the profile was not found in local storage recently
+     *  (no need to query it again before the miss expired)
+     *
+     * @param identifier - entity ID
+     * @return true on miss cached
+     */
+    public boolean isProfileMissing(ID identifier) {
+        return profileTable.isMissing(identifier);
+    }
+
     //-------- Relationship
 
     public boolean addMember(ID member, ID group) {
@@ -180,6 +207,22 @@ public class Facebook extends chat.dim.Facebook {
 
     //--------
 
+    @Override
+    public ID getID(Object string) {
+        IDPool pool = IDPool.getInstance();
+        // 1. get shared ID object
+        ID identifier = pool.lookup(string);
+        if (identifier != null) {
+            return identifier;
+        }
+        // 2. parse (or get from ANS) and share it
+        identifier = super.getID(string);
+        if (identifier == null) {
+            return null;
+        }
+        return pool.intern(identifier);
+    }
+
     public String getUsername(Object string) {
         return getUsername(getID(string));
     }
@@ -326,7 +369,12 @@ public class Facebook extends chat.dim.Facebook {
         if (founder != null) {
             return founder;
         }
-        return super.getFounder(group);
+        founder = super.getFounder(group);
+        if (founder != null) {
+            // cache it and keep the founder at the front of members
+            groupTable.setFounder(founder, group);
+        }
+        return founder;
     }
 
     @Override
@@ -343,4 +391,14 @@ public class Facebook extends chat.dim.Facebook {
     public List<ID> getMembers(ID group) {
         return groupTable.getMembers(group);
     }
+
+    @Override
+    public boolean existsMember(ID member, ID group) {
+        // check with members index
+        if (groupTable.existsMember(member, group)) {
+            return true;
+        }
+        ID owner = getOwner(group);
+        return owner != null && owner.equals(member);
+    }
 }
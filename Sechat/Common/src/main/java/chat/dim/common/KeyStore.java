@@ -25,6 +25,37 @@
  */
 package chat.dim.common;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chat.dim.ID;
+import chat.dim.User;
+import chat.dim.crypto.EncryptKey;
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.database.CipherKeyTable;
+import chat.dim.digest.SHA256;
+import chat.dim.format.Base64;
+
+/**
+ *  Cache of message keys, persisted in local storage (encrypted by local user)
+ *
+ *  A key is loaded on first use of the (sender, receiver) pair, so the keys
+ *  still work after restart and need not be sent to the receivers again.
+ *  The keys generated by local users expire after KEY_EXPIRES (or after
+ *  encrypting KEY_MAX_MESSAGES messages), then a new key will be generated
+ *  (and sent with the next message).
+ *
+ *  Personal message keys are reused (not sent with the message) after the
+ *  receiver acknowledged it by a receipt of a message carrying the key.
+ *  A receiver which lost the key (or got a different one) asks for it by a
+ *  receipt with 'resend_key', then the key is sent with the messages again.
+ *  Keys of other senders are never generated here, only received.
+ */
 public class KeyStore extends chat.dim.KeyStore {
     private static final KeyStore ourInstance = new KeyStore();
     public static KeyStore getInstance() { return ourInstance; }
@@ -32,15 +63,448 @@ public class KeyStore extends chat.dim.KeyStore {
         super();
     }
 
-//    @Override
-//    public boolean saveKeys(Map keyMap) {
-//        // TODO: save key map into local cache
-//        return super.saveKeys(keyMap);
-//    }
-//
-//    @Override
-//    public Map loadKeys() {
-//        // TODO: load key map from local cache
-//        return super.loadKeys();
-//    }
+    // keys generated by local users expire after 7 days
+    public static long KEY_EXPIRES = 7 * 24 * 3600 * 1000L;
+    // keys generated by local users are rotated after encrypting 1000 messages
+    public static int KEY_MAX_MESSAGES = 1000;
+
+    // reuse personal message keys after the receiver acknowledged them
+    public static boolean REUSE_PERSONAL_KEYS = true;
+
+    // messages carrying the key waiting for receipts
+    private static final int MAX_PENDING = 32;
+
+    // wrapped key data kept for each key (group members may be up to 5000)
+    public static int MAX_WRAPPED_KEYS = 512;
+
+    // local users for encrypting keys in storage
+    public chat.dim.Facebook facebook = null;
+
+    private CipherKeyTable keyTable = new CipherKeyTable();
+
+    /**
+     *  Key with the time it was generated (or received)
+     */
+    private static class CipherKey {
+
+        final SymmetricKey key;
+        final long time;  // milliseconds
+
+        String digest = null;
+
+        // messages encrypted by this key
+        int count = 0;
+        // serial numbers of the messages sent with this key
+        Set<Long> pending = null;
+
+        // receiver => key data encrypted by the receiver's public key
+        Map<ID, WrappedKey> wrappedKeys = null;
+
+        CipherKey(SymmetricKey key, long time) {
+            super();
+            this.key = key;
+            this.time = time;
+        }
+    }
+
+    /**
+     *  Key data encrypted for a receiver
+     */
+    private static class WrappedKey {
+
+        final EncryptKey publicKey;
+        final byte[] data;
+
+        WrappedKey(EncryptKey publicKey, byte[] data) {
+            super();
+            this.publicKey = publicKey;
+            this.data = data;
+        }
+    }
+
+    // "{sender}-{receiver}" => key (null for not found in local storage)
+    private final Map<String, CipherKey> cipherKeys = new HashMap<>();
+
+    private static String getPair(ID sender, ID receiver) {
+        return sender.address + "-" + receiver.address;
+    }
+
+    private boolean isLocalUser(ID identifier) {
+        if (facebook == null) {
+            return false;
+        }
+        List<User> users = facebook.getLocalUsers();
+        if (users != null) {
+            for (User user : users) {
+                if (user.identifier.equals(identifier)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // get the local user who owns the keys between sender and receiver
+    private User getLocalUser(ID sender, ID receiver) {
+        if (facebook == null) {
+            return null;
+        }
+        List<User> users = facebook.getLocalUsers();
+        if (users != null) {
+            for (User user : users) {
+                if (user.identifier.equals(sender) || user.identifier.equals(receiver)) {
+                    return user;
+                }
+            }
+        }
+        // group message from other member
+        return facebook.getCurrentUser();
+    }
+
+    private CipherKey loadKey(ID sender, ID receiver) {
+        User user = getLocalUser(sender, receiver);
+        if (user == null) {
+            return null;
+        }
+        Map<String, Object> entry = keyTable.loadKey(user, sender, receiver);
+        if (entry == null) {
+            return null;
+        }
+        SymmetricKey key;
+        try {
+            key = SymmetricKey.getInstance(entry.get("key"));
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (key == null) {
+            return null;
+        }
+        Object time = entry.get("time");
+        CipherKey cipherKey = new CipherKey(key, time == null ? 0 : ((Number) time).longValue() * 1000);
+        Object count = entry.get("count");
+        if (count != null) {
+            cipherKey.count = ((Number) count).intValue();
+        }
+        return cipherKey;
+    }
+
+    private void saveKey(CipherKey cipherKey, ID sender, ID receiver) {
+        User user = getLocalUser(sender, receiver);
+        if (user == null) {
+            // memory only
+            return;
+        }
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("key", new HashMap<>(cipherKey.key));
+        entry.put("time", cipherKey.time / 1000);
+        entry.put("count", cipherKey.count);
+        keyTable.saveKey(entry, user, sender, receiver);
+    }
+
+    // get key from memory cache, or load it from local storage
+    private CipherKey getKey(ID sender, ID receiver) {
+        String pair = getPair(sender, receiver);
+        if (cipherKeys.containsKey(pair)) {
+            return cipherKeys.get(pair);
+        }
+        CipherKey cipherKey = loadKey(sender, receiver);
+        cipherKeys.put(pair, cipherKey);
+        return cipherKey;
+    }
+
+    private void setKey(SymmetricKey key, ID sender, ID receiver) {
+        CipherKey cipherKey = new CipherKey(key, System.currentTimeMillis());
+        cipherKeys.put(getPair(sender, receiver), cipherKey);
+        saveKey(cipherKey, sender, receiver);
+    }
+
+    private boolean isExpired(CipherKey cipherKey, ID sender) {
+        return cipherKey.time + KEY_EXPIRES < System.currentTimeMillis() && isLocalUser(sender);
+    }
+
+    @Override
+    public synchronized SymmetricKey getCipherKey(ID sender, ID receiver) {
+        if (receiver.isBroadcast()) {
+            return super.getCipherKey(sender, receiver);
+        }
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey != null && !isExpired(cipherKey, sender)) {
+            return cipherKey.key;
+        }
+        if (!isLocalUser(sender)) {
+            // the key should be sent by the sender, ask for it
+            return null;
+        }
+        // create a new key (or rotate the expired one)
+        SymmetricKey key;
+        try {
+            key = SymmetricKey.generate(SymmetricKey.AES);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+        setKey(key, sender, receiver);
+        return key;
+    }
+
+    @Override
+    public synchronized void cacheCipherKey(ID sender, ID receiver, SymmetricKey key) {
+        if (receiver.isBroadcast()) {
+            return;
+        }
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey != null && cipherKey.key.equals(key)) {
+            // same key
+            return;
+        }
+        setKey(key, sender, receiver);
+    }
+
+    // last 8 chars of base64(sha256(last 6 bytes of key data))
+    private static String digest(SymmetricKey key) {
+        byte[] data = key.getData();
+        if (data == null || data.length < 6) {
+            // broadcast message has no key
+            return null;
+        }
+        byte[] part = new byte[6];
+        System.arraycopy(data, data.length - 6, part, 0, 6);
+        String base64 = Base64.encode(SHA256.digest(part));
+        return base64.substring(base64.length() - 8);
+    }
+
+    /**
+     *  Get digest of the key for message 'keys', it is computed only once
+     *  for each key (a rotated key gets a new digest)
+     *
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @return key digest, null for broadcast message
+     */
+    public synchronized String getKeyDigest(ID sender, ID receiver) {
+        SymmetricKey key = getCipherKey(sender, receiver);
+        if (key == null || receiver.isBroadcast()) {
+            return null;
+        }
+        CipherKey cipherKey = cipherKeys.get(getPair(sender, receiver));
+        if (cipherKey == null || cipherKey.key != key) {
+            return digest(key);
+        }
+        if (cipherKey.digest == null) {
+            cipherKey.digest = digest(key);
+        }
+        return cipherKey.digest;
+    }
+
+    /**
+     *  Check the key for decrypting the message without key data
+     *  (the key reused by the sender may be lost or changed here)
+     *
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @param digest - key digest in the message (null to skip checking)
+     * @return false on the key not found or not matched
+     */
+    public synchronized boolean checkCipherKey(ID sender, ID receiver, String digest) {
+        if (receiver.isBroadcast() || isLocalUser(sender)) {
+            // no key, or sent by local user on another device
+            return true;
+        }
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey == null) {
+            return false;
+        }
+        if (digest == null) {
+            return true;
+        }
+        if (cipherKey.digest == null) {
+            cipherKey.digest = digest(cipherKey.key);
+        }
+        return digest.equals(cipherKey.digest);
+    }
+
+    /**
+     *  Save the key again after its attributes changed (e.g.: 'reused')
+     *
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     */
+    public synchronized void updateCipherKey(ID sender, ID receiver) {
+        CipherKey cipherKey = cipherKeys.get(getPair(sender, receiver));
+        if (cipherKey != null) {
+            if (cipherKey.key.get("reused") != null) {
+                cipherKey.wrappedKeys = null;
+            }
+            saveKey(cipherKey, sender, receiver);
+        }
+    }
+
+    //-------- wrapped keys
+
+    /**
+     *  Get the key data encrypted for the receiver before
+     *
+     * @param key - message key
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @param member - the user who the key is encrypted for
+     * @param publicKey - current public key of the member (meta.key or profile.key)
+     * @return encrypted key data, null on not found (or the member's key changed)
+     */
+    public synchronized byte[] getWrappedKey(SymmetricKey key, ID sender, ID receiver, ID member, EncryptKey publicKey) {
+        CipherKey cipherKey = cipherKeys.get(getPair(sender, receiver));
+        if (cipherKey == null || cipherKey.key != key || cipherKey.wrappedKeys == null) {
+            return null;
+        }
+        WrappedKey wrapped = cipherKey.wrappedKeys.get(member);
+        if (wrapped == null) {
+            return null;
+        }
+        if (!wrapped.publicKey.equals(publicKey)) {
+            // the member changed its key
+            cipherKey.wrappedKeys.remove(member);
+            return null;
+        }
+        return wrapped.data;
+    }
+
+    /**
+     *  Keep the key data encrypted for the receiver, till the key rotated
+     *  (at most MAX_WRAPPED_KEYS receivers for each key, none for reused keys)
+     *
+     * @param data - encrypted key data
+     * @param key - message key
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @param member - the user who the key is encrypted for
+     * @param publicKey - the member's public key used to encrypt the key
+     */
+    public synchronized void cacheWrappedKey(byte[] data, SymmetricKey key, ID sender, ID receiver, ID member, EncryptKey publicKey) {
+        CipherKey cipherKey = cipherKeys.get(getPair(sender, receiver));
+        if (cipherKey == null || cipherKey.key != key) {
+            return;
+        }
+        if (key.get("reused") != null) {
+            // not sent with the messages any more
+            cipherKey.wrappedKeys = null;
+            return;
+        }
+        if (cipherKey.wrappedKeys == null) {
+            // least recently used members dropped
+            cipherKey.wrappedKeys = new LinkedHashMap<ID, WrappedKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ID, WrappedKey> eldest) {
+                    return size() > MAX_WRAPPED_KEYS;
+                }
+            };
+        }
+        cipherKey.wrappedKeys.put(member, new WrappedKey(publicKey, data));
+    }
+
+    //-------- key reusing
+
+    /**
+     *  Count the message to be encrypted by the key,
+     *  a new key will be generated when the key was used too many times
+     *
+     * @param sender - local user
+     * @param receiver - message receiver (or group)
+     */
+    public synchronized void countCipherKey(ID sender, ID receiver) {
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey == null) {
+            return;
+        }
+        if (cipherKey.count >= KEY_MAX_MESSAGES && isLocalUser(sender)) {
+            rotateCipherKey(sender, receiver);
+            return;
+        }
+        ++cipherKey.count;
+        if (cipherKey.count % 100 == 0) {
+            // keep the count after restart
+            saveKey(cipherKey, sender, receiver);
+        }
+    }
+
+    /**
+     *  Remember the message sent with the key (not acknowledged yet)
+     *
+     * @param sender - local user
+     * @param receiver - contact
+     * @param sn - serial number of the message
+     */
+    public synchronized void sentCipherKey(ID sender, ID receiver, long sn) {
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey == null || cipherKey.key.get("reused") != null) {
+            return;
+        }
+        if (cipherKey.pending == null) {
+            cipherKey.pending = new LinkedHashSet<>();
+        }
+        cipherKey.pending.add(sn);
+        if (cipherKey.pending.size() > MAX_PENDING) {
+            Iterator<Long> iterator = cipherKey.pending.iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     *  The receiver responded a receipt of the message, so it got the key,
+     *  the key will be reused without sending it again
+     *
+     * @param sender - local user
+     * @param receiver - contact
+     * @param sn - serial number of the message
+     * @return true on the key acknowledged
+     */
+    public synchronized boolean acknowledgeCipherKey(ID sender, ID receiver, long sn) {
+        if (!REUSE_PERSONAL_KEYS) {
+            return false;
+        }
+        CipherKey cipherKey = cipherKeys.get(getPair(sender, receiver));
+        if (cipherKey == null || cipherKey.pending == null || !cipherKey.pending.contains(sn)) {
+            return false;
+        }
+        cipherKey.pending = null;
+        cipherKey.wrappedKeys = null;
+        cipherKey.key.put("reused", true);
+        saveKey(cipherKey, sender, receiver);
+        return true;
+    }
+
+    /**
+     *  The receiver cannot decrypt the messages without key data,
+     *  so stop reusing the key, it will be sent with the next messages again
+     *
+     * @param sender - local user
+     * @param receiver - contact (or group)
+     * @return false on the key not reused
+     */
+    public synchronized boolean resendCipherKey(ID sender, ID receiver) {
+        CipherKey cipherKey = getKey(sender, receiver);
+        if (cipherKey == null || cipherKey.key.get("reused") == null) {
+            return false;
+        }
+        cipherKey.key.remove("reused");
+        cipherKey.pending = null;
+        saveKey(cipherKey, sender, receiver);
+        return true;
+    }
+
+    /**
+     *  Drop the key, a new key will be generated for next message
+     *  (e.g.: group members changed)
+     *
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     */
+    public synchronized void rotateCipherKey(ID sender, ID receiver) {
+        cipherKeys.put(getPair(sender, receiver), null);
+        User user = getLocalUser(sender, receiver);
+        if (user != null) {
+            keyTable.removeKey(user, sender, receiver);
+        }
+    }
 }
@@ -35,8 +35,10 @@ import chat.dim.Envelope;
 import chat.dim.ID;
 import chat.dim.InstantMessage;
 import chat.dim.Meta;
+import chat.dim.Profile;
 import chat.dim.ReliableMessage;
 import chat.dim.SecureMessage;
+import chat.dim.User;
 import chat.dim.core.CipherKeyDelegate;
 import chat.dim.core.EntityDelegate;
 import chat.dim.cpu.AnyContentProcessor;
@@ -45,6 +47,7 @@ import chat.dim.cpu.CommandProcessor;
 import chat.dim.cpu.ContentProcessor;
 import chat.dim.cpu.MuteCommandProcessor;
 import chat.dim.cpu.ReceiptCommandProcessor;
+import chat.dim.crypto.EncryptKey;
 import chat.dim.crypto.SymmetricKey;
 import chat.dim.digest.SHA256;
 import chat.dim.format.Base64;
@@ -52,8 +55,10 @@ import chat.dim.protocol.BlockCommand;
 import chat.dim.protocol.Command;
 import chat.dim.protocol.ContentType;
 import chat.dim.protocol.MuteCommand;
+import chat.dim.protocol.ReceiptCommand;
 import chat.dim.protocol.group.InviteCommand;
 import chat.dim.protocol.group.ResetCommand;
+import chat.dim.utils.LRUCache;
 
 public abstract class Messenger extends chat.dim.Messenger {
     public Messenger()  {
@@ -61,6 +66,30 @@ public abstract class Messenger extends chat.dim.Messenger {
         setCipherKeyDelegate(KeyStore.getInstance());
     }
 
+    // count of recent messages remembered for dropping duplicates
+    public static long DUPLICATES_CAPACITY = 4096;
+
+    // "{sender}:{signature digest}" of saved messages => sn (0 for no receipt)
+    private final LRUCache<String, Long> savedSignatures = new LRUCache<>(DUPLICATES_CAPACITY);
+    // "{sender}:{sn}" of saved messages
+    private final LRUCache<String, Boolean> savedMessages = new LRUCache<>(DUPLICATES_CAPACITY);
+    // signature of the message being processed by this thread
+    private final ThreadLocal<String> processing = new ThreadLocal<>();
+
+    // ask the sender for the same key once a minute at most
+    public static long KEY_REQUEST_INTERVAL = 60 * 1000;
+    // "{sender}-{receiver}" of the keys asked for => time
+    private final LRUCache<String, Long> keyRequests = new LRUCache<>(256);
+
+    @Override
+    public void setEntityDelegate(EntityDelegate delegate) {
+        super.setEntityDelegate(delegate);
+        if (delegate instanceof chat.dim.Facebook) {
+            // local users for encrypting keys in storage
+            KeyStore.getInstance().facebook = (chat.dim.Facebook) delegate;
+        }
+    }
+
     // check whether group info empty
     private boolean isEmpty(ID group) {
         chat.dim.Facebook facebook = getFacebook();
@@ -147,30 +176,21 @@ public abstract class Messenger extends chat.dim.Messenger {
             // key digest already exists
             return;
         }
-        // get key with direction
-        SymmetricKey key;
+        // get key digest with direction (cached with the key)
+        String digest;
         EntityDelegate facebook = getEntityDelegate();
-        Object sender = rMsg.envelope.sender;
+        ID sender = facebook.getID(rMsg.envelope.sender);
         Object group = rMsg.envelope.getGroup();
         if (group == null) {
-            Object receiver = rMsg.envelope.receiver;
-            key = getCipherKeyDelegate().getCipherKey(facebook.getID(sender), facebook.getID(receiver));
+            digest = KeyStore.getInstance().getKeyDigest(sender, facebook.getID(rMsg.envelope.receiver));
         } else {
-            key = getCipherKeyDelegate().getCipherKey(facebook.getID(sender), facebook.getID(group));
+            digest = KeyStore.getInstance().getKeyDigest(sender, facebook.getID(group));
         }
-        // get key data
-        byte[] data = key.getData();
-        if (data == null || data.length < 6) {
+        if (digest == null) {
             // broadcast message has no key
             return;
         }
-        // get digest
-        byte[] part = new byte[6];
-        System.arraycopy(data, data.length-6, part, 0, 6);
-        byte[] digest = SHA256.digest(part);
-        String base64 = Base64.encode(digest);
-        int pos = base64.length() - 8;
-        keys.put("digest", base64.substring(pos));
+        keys.put("digest", digest);
         rMsg.put("keys", keys);
     }
 
@@ -183,25 +203,191 @@ public abstract class Messenger extends chat.dim.Messenger {
         return super.deserializeMessage(data);
     }
 
+    //-------- Duplicates
+
+    private static String getSignatureKey(ReliableMessage rMsg) {
+        byte[] signature = rMsg.getSignature();
+        if (signature == null) {
+            return null;
+        }
+        return rMsg.envelope.sender + ":" + Base64.encode(SHA256.digest(signature));
+    }
+
     @Override
-    public SecureMessage encryptMessage(InstantMessage iMsg) {
-        SecureMessage sMsg = super.encryptMessage(iMsg);
+    public SecureMessage verifyMessage(ReliableMessage rMsg) {
+        String key = getSignatureKey(rMsg);
+        Long sn = key == null ? null : savedSignatures.get(key);
+        if (sn != null) {
+            // received again (after reconnecting, re-delivered by station, or forwarded),
+            // it was saved before, respond again and drop it without decrypting
+            if (sn != 0) {
+                respond(new ReceiptCommand("Message received", sn, rMsg.envelope), rMsg);
+            }
+            return null;
+        }
+        SecureMessage sMsg = super.verifyMessage(rMsg);
+        if (sMsg != null && key != null) {
+            // remembered when the message saved
+            processing.set(key);
+        } else {
+            processing.remove();
+        }
+        return sMsg;
+    }
+
+    @Override
+    public InstantMessage decryptMessage(SecureMessage sMsg) {
+        if (sMsg.getKey() == null && !checkCipherKey(sMsg)) {
+            // the key reused by the sender is lost (or changed)
+            requestCipherKey(sMsg);
+            return null;
+        }
+        InstantMessage iMsg = super.decryptMessage(sMsg);
+        if (iMsg == null && sMsg.getKey() == null) {
+            requestCipherKey(sMsg);
+        }
+        return iMsg;
+    }
+
+    // check the key for message without key data
+    private boolean checkCipherKey(SecureMessage sMsg) {
+        EntityDelegate facebook = getEntityDelegate();
+        ID sender = facebook.getID(sMsg.envelope.sender);
+        ID group = facebook.getID(sMsg.envelope.getGroup());
+        ID receiver = group == null ? facebook.getID(sMsg.envelope.receiver) : group;
+        Map<Object, Object> keys = sMsg.getKeys();
+        Object digest = keys == null ? null : keys.get("digest");
+        return KeyStore.getInstance().checkCipherKey(sender, receiver, digest == null ? null : digest.toString());
+    }
+
+    // ask the sender to send the key again
+    private void requestCipherKey(SecureMessage sMsg) {
+        EntityDelegate facebook = getEntityDelegate();
+        ID group = facebook.getID(sMsg.envelope.getGroup());
+        ID receiver = group == null ? facebook.getID(sMsg.envelope.receiver) : group;
+        if (receiver.isBroadcast()) {
+            return;
+        }
+        String pair = sMsg.envelope.sender + "-" + receiver;
+        long now = System.currentTimeMillis();
+        Long last = keyRequests.get(pair);
+        if (last != null && last + KEY_REQUEST_INTERVAL > now) {
+            return;
+        }
+        keyRequests.put(pair, now);
+        ReceiptCommand res = new ReceiptCommand("Message key not found", 0, sMsg.envelope);
+        // the sender will stop reusing the key (personal or group)
+        res.put("resend_key", receiver.toString());
+        respond(res, sMsg);
+    }
+
+    /**
+     *  Check whether the message was saved before (e.g.: resent by the sender
+     *  with a new signature)
+     *
+     * @param iMsg - instant message
+     * @return true on saved before
+     */
+    protected boolean isDuplicated(InstantMessage iMsg) {
+        String key = iMsg.envelope.sender + ":" + iMsg.content.serialNumber;
+        return savedMessages.get(key) != null;
+    }
+
+    /**
+     *  Remember the message after saved, so it will be dropped when received again
+     *  (the failed or suspended ones will be processed again)
+     *
+     * @param iMsg - instant message
+     */
+    protected void markSaved(InstantMessage iMsg) {
+        markSaved(iMsg, takeSignatureKey(iMsg));
+    }
+
+    /**
+     *  Remember the message after saved (e.g.: saved later in a burst)
+     *
+     * @param iMsg - instant message
+     * @param signatureKey - taken when the message was processing
+     */
+    protected void markSaved(InstantMessage iMsg, String signatureKey) {
+        long sn = iMsg.content.serialNumber;
+        savedMessages.put(iMsg.envelope.sender + ":" + sn, true);
+        if (signatureKey != null) {
+            // group messages are not responded
+            savedSignatures.put(signatureKey, iMsg.content.getGroup() == null ? sn : 0L);
+        }
+    }
+
+    /**
+     *  Take the signature of the message being processed by this thread
+     *
+     * @param iMsg - instant message
+     * @return null on not found
+     */
+    protected String takeSignatureKey(InstantMessage iMsg) {
+        String key = processing.get();
+        if (key == null || !key.startsWith(iMsg.envelope.sender + ":")) {
+            return null;
+        }
+        processing.remove();
+        return key;
+    }
 
+    /**
+     *  Send response to the sender of the message
+     *
+     * @param res - response content
+     * @param rMsg - message received
+     * @return false on failed
+     */
+    protected boolean respond(Content res, SecureMessage rMsg) {
+        EntityDelegate facebook = getEntityDelegate();
+        ID sender = facebook.getID(rMsg.envelope.sender);
+        User user = select(facebook.getID(rMsg.envelope.receiver));
+        if (user == null) {
+            return false;
+        }
+        InstantMessage iMsg = new InstantMessage(res, user.identifier, sender);
+        return sendMessage(iMsg, null, false);
+    }
+
+    @Override
+    public SecureMessage encryptMessage(InstantMessage iMsg) {
         EntityDelegate facebook = getEntityDelegate();
         Envelope env = iMsg.envelope;
         ID receiver = facebook.getID(env.receiver);
+        boolean personal = isPersonal(iMsg, receiver);
+        if (personal) {
+            // rotate the key used too many times
+            KeyStore.getInstance().countCipherKey(facebook.getID(env.sender), receiver);
+        }
+
+        SecureMessage sMsg = super.encryptMessage(iMsg);
+
         if (receiver.isGroup()) {
             CipherKeyDelegate keyCache = getCipherKeyDelegate();
             // reuse group message keys
             ID sender = facebook.getID(env.sender);
             SymmetricKey key = keyCache.getCipherKey(sender, receiver);
-            key.put("reused", true);
+            if (key.get("reused") == null) {
+                key.put("reused", true);
+                // keep the flag after restart
+                KeyStore.getInstance().updateCipherKey(sender, receiver);
+            }
+        } else if (personal && KeyStore.REUSE_PERSONAL_KEYS) {
+            // reuse personal message key after the receiver acknowledged it
+            ID sender = facebook.getID(env.sender);
+            KeyStore.getInstance().sentCipherKey(sender, receiver, iMsg.content.serialNumber);
         }
-        // TODO: reuse personal message key?
 
         return sMsg;
     }
 
+    // one-to-one message (not split from group message)
+    private static boolean isPersonal(InstantMessage iMsg, ID receiver) {
+        return receiver.isUser() && !receiver.isBroadcast() && iMsg.content.getGroup() == null;
+    }
+
     @Override
     public byte[] serializeKey(Map<String, Object> password, InstantMessage iMsg) {
         if (password.get("reused") != null) {
@@ -210,8 +396,49 @@ public abstract class Messenger extends chat.dim.Messenger {
                 // reuse key for grouped message
                 return null;
             }
+            if (KeyStore.REUSE_PERSONAL_KEYS && isPersonal(iMsg, receiver)) {
+                // reuse key acknowledged by the receiver
+                return null;
+            }
+        }
+        return wrapKey(password, iMsg);
+    }
+
+    // get public key of the user for encrypting message key
+    private EncryptKey getEncryptKey(ID user) {
+        chat.dim.Facebook facebook = getFacebook();
+        Profile profile = facebook.getProfile(user);
+        if (profile != null && profile.isValid()) {
+            EncryptKey key = profile.getKey();
+            if (key != null) {
+                return key;
+            }
+        }
+        Meta meta = facebook.getMeta(user);
+        return meta == null ? null : meta.getKey();
+    }
+
+    // encrypt the key for the receiver only once (till the key or the receiver's key changed)
+    private byte[] wrapKey(Map<String, Object> password, InstantMessage iMsg) {
+        EntityDelegate facebook = getEntityDelegate();
+        ID receiver = facebook.getID(iMsg.envelope.receiver);
+        EncryptKey publicKey = receiver.isUser() ? getEncryptKey(receiver) : null;
+        if (!(password instanceof SymmetricKey) || publicKey == null) {
+            return super.serializeKey(password, iMsg);
+        }
+        SymmetricKey key = (SymmetricKey) password;
+        ID sender = facebook.getID(iMsg.envelope.sender);
+        ID group = facebook.getID(iMsg.content.getGroup());
+        ID direction = group == null ? receiver : group;
+        KeyStore keyStore = KeyStore.getInstance();
+        byte[] data = keyStore.getWrappedKey(key, sender, direction, receiver, publicKey);
+        if (data == null) {
+            data = super.serializeKey(password, iMsg);
+            if (data != null) {
+                keyStore.cacheWrappedKey(data, key, sender, direction, receiver, publicKey);
+            }
         }
-        return super.serializeKey(password, iMsg);
+        return data;
     }
 
     @Override
@@ -29,6 +29,8 @@ import chat.dim.Content;
 import chat.dim.ID;
 import chat.dim.ReliableMessage;
 import chat.dim.Messenger;
+import chat.dim.common.KeyStore;
+import chat.dim.protocol.NetworkType;
 import chat.dim.protocol.ReceiptCommand;
 
 public class ReceiptCommandProcessor extends CommandProcessor {
@@ -40,7 +42,22 @@ public class ReceiptCommandProcessor extends CommandProcessor {
     @Override
     public Content process(Content content, ID sender, ReliableMessage rMsg) {
         assert content instanceof ReceiptCommand : "receipt command error: " + content;
-        // no need to response receipt command
+        if (sender.getType() != NetworkType.Station.value) {
+            ID user = getFacebook().getID(rMsg.envelope.receiver);
+            Object direction = content.get("resend_key");
+            if (direction != null) {
+                // the contact cannot decrypt the message, send the key again
+                ID receiver = getFacebook().getID(direction);
+                if (receiver.equals(sender) || receiver.isGroup()) {
+                    KeyStore.getInstance().resendCipherKey(user, receiver);
+                }
+                return null;
+            }
+            // the contact decrypted the message, so it has got the key
+            KeyStore.getInstance().acknowledgeCipherKey(user, sender, content.serialNumber);
+        }
+        // no need to response receipt command,
+        // it will be saved by the messenger to update the message state
         return null;
     }
 }
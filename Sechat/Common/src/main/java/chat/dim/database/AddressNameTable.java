@@ -25,7 +25,9 @@
  */
 package chat.dim.database;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -33,10 +35,47 @@ import java.util.Set;
 
 import chat.dim.ID;
 import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.UTF8;
+import chat.dim.utils.IDPool;
 
+/**
+ *  ANS records journal
+ *
+ *      "/sdcard/chat.dim.sechat/dim/ans.txt"
+ *
+ *  Each line is a record "{name}\t{ID}", new records are appended to the end,
+ *  the last record of a name wins. When the superseded records are more than
+ *  the alive ones, the whole journal will be rewritten (compaction).
+ */
 public class AddressNameTable extends ExternalStorage {
 
-    private Map<String, ID> ansTable = loadRecords();
+    // name => ID
+    private Map<String, ID> ansTable = new HashMap<>();
+    // ID => names
+    private Map<ID, Set<String>> reverseTable = new HashMap<>();
+
+    // records in the journal file (including superseded ones)
+    private int journalLength = 0;
+    // bytes in the journal file
+    private long fileLength = 0;
+    // new records waiting to be appended
+    private StringBuilder pendingRecords = new StringBuilder();
+    private boolean compactNeeded = false;
+
+    // compact the journal when superseded records are more than this
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public AddressNameTable() {
+        super();
+        loadRecords();
+    }
 
     // "/sdcard/chat.dim.sechat/dim/ans.txt"
 
@@ -46,17 +85,40 @@ public class AddressNameTable extends ExternalStorage {
                 + "ans.txt";
     }
 
+    /**
+     *  Update name => ID, and the reverse index
+     *
+     * @return false on nothing changed
+     */
     private boolean cacheRecord(String name, ID identifier) {
         if (name.length() == 0) {
             return false;
         }
-        ansTable.put(name, identifier);
+        ID old = ansTable.put(name, identifier);
+        if (identifier.equals(old)) {
+            return false;
+        }
+        if (old != null) {
+            Set<String> names = reverseTable.get(old);
+            if (names != null) {
+                names.remove(name);
+                if (names.size() == 0) {
+                    reverseTable.remove(old);
+                }
+            }
+        }
+        Set<String> names = reverseTable.get(identifier);
+        if (names == null) {
+            names = new HashSet<>();
+            reverseTable.put(identifier, names);
+        }
+        names.add(name);
         return true;
     }
 
-    private Map<String, ID> loadRecords() {
-        Map<String, ID> dictionary = new HashMap<>();
+    private synchronized void loadRecords() {
         String path = getAnsFilePath();
+        StorageWriter.getInstance().flush(path);
         // loading ANS records
         String text;
         try {
@@ -65,6 +127,7 @@ public class AddressNameTable extends ExternalStorage {
             e.printStackTrace();
             text = null;
         }
+        fileLength = new File(path).length();
         if (text != null && text.length() > 0) {
             String[] lines = text.split("[\\r\\n]+");
             String[] pair;
@@ -74,39 +137,48 @@ public class AddressNameTable extends ExternalStorage {
                     // invalid record
                     continue;
                 }
-                dictionary.put(pair[0], ID.getInstance(pair[1]));
+                cacheRecord(pair[0], IDPool.getInstance().getID(pair[1]));
+                ++journalLength;
             }
         }
         ID moky = ID.getInstance("moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ");
         // Reserved names
-        dictionary.put("all", ID.EVERYONE);
-        dictionary.put(ID.EVERYONE.toString(), ID.EVERYONE);
-        dictionary.put(ID.ANYONE.toString(), ID.ANYONE);
-        dictionary.put("owner", ID.ANYONE);
-        dictionary.put("founder", moky);
-        return dictionary;
+        cacheRecord("all", ID.EVERYONE);
+        cacheRecord(ID.EVERYONE.toString(), ID.EVERYONE);
+        cacheRecord(ID.ANYONE.toString(), ID.ANYONE);
+        cacheRecord("owner", ID.ANYONE);
+        cacheRecord("founder", moky);
     }
 
-    private boolean saveRecords(Map<String, ID> caches) {
-        StringBuilder text = new StringBuilder();
-        Set<String> allKeys = caches.keySet();
-        ID identifier;
-        for (String name : allKeys) {
-            identifier = caches.get(name);
-            assert identifier != null;
-            text.append(name);
-            text.append("\t");
-            text.append(identifier.toString());
-            text.append("\n");
-        }
-        // saving ANS records
+    private static void appendRecord(StringBuilder text, String name, ID identifier) {
+        text.append(name);
+        text.append("\t");
+        text.append(identifier.toString());
+        text.append("\n");
+    }
+
+    // write pending records (called by storage thread)
+    private synchronized void flush() {
         String path = getAnsFilePath();
-        try {
-            return saveText(text.toString(), path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+        StorageWriter writer = StorageWriter.getInstance();
+        byte[] data;
+        if (compactNeeded) {
+            // rewrite all records
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, ID> entry : ansTable.entrySet()) {
+                appendRecord(text, entry.getKey(), entry.getValue());
+            }
+            data = UTF8.encode(text.toString());
+            writer.put(path, data);
+            fileLength = data.length;
+            journalLength = ansTable.size();
+            compactNeeded = false;
+        } else if (pendingRecords.length() > 0) {
+            data = UTF8.encode(pendingRecords.toString());
+            writer.write(path, fileLength, data);
+            fileLength += data.length;
         }
+        pendingRecords.setLength(0);
     }
 
     /**
@@ -116,12 +188,22 @@ public class AddressNameTable extends ExternalStorage {
      * @param identifier - user ID
      * @return true on success
      */
-    public boolean saveRecord(String name, ID identifier) {
-        if (!cacheRecord(name, identifier)) {
+    public synchronized boolean saveRecord(String name, ID identifier) {
+        if (name.length() == 0) {
             return false;
         }
-        // save to local storage
-        return saveRecords(ansTable);
+        if (!cacheRecord(name, identifier)) {
+            // not changed
+            return true;
+        }
+        // append to local storage
+        appendRecord(pendingRecords, name, identifier);
+        ++journalLength;
+        if (journalLength - ansTable.size() > Math.max(COMPACT_THRESHOLD, ansTable.size())) {
+            compactNeeded = true;
+        }
+        StorageWriter.getInstance().post(getAnsFilePath(), flushTask);
+        return true;
     }
 
     /**
@@ -130,7 +212,7 @@ public class AddressNameTable extends ExternalStorage {
      * @param name - short name
      * @return user ID
      */
-    public ID record(String name) {
+    public synchronized ID record(String name) {
         return ansTable.get(name.toLowerCase());
     }
 
@@ -140,23 +222,18 @@ public class AddressNameTable extends ExternalStorage {
      * @param identifier - user ID
      * @return all short names pointing to this same ID
      */
-    public Set<String> names(String identifier) {
-        Set<String> allKeys = ansTable.keySet();
+    public synchronized Set<String> names(String identifier) {
         // all names
         if (identifier.equals("*")) {
-            return allKeys;
+            return Collections.unmodifiableSet(new HashSet<>(ansTable.keySet()));
         }
         // FIXME: get ID by facebook
-        ID target = ID.getInstance(identifier);
+        ID target = IDPool.getInstance().getID(identifier);
         // get keys with the same value
-        Set<String> keys = new HashSet<>();
-        ID value;
-        for (String key : allKeys) {
-            value = ansTable.get(key);
-            if (value != null && value.equals(target)) {
-                keys.add(key);
-            }
+        Set<String> keys = reverseTable.get(target);
+        if (keys == null) {
+            return Collections.emptySet();
         }
-        return keys;
+        return Collections.unmodifiableSet(new HashSet<>(keys));
     }
 }
@@ -0,0 +1,181 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import chat.dim.Address;
+import chat.dim.ID;
+import chat.dim.User;
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.JSON;
+
+/**
+ *  Symmetric keys of messages, encrypted at rest
+ *
+ *      "/sdcard/chat.dim.sechat/.private/{user}/keystore.key"
+ *      "/sdcard/chat.dim.sechat/.private/{user}/keys/{sender}-{receiver}.key"
+ *
+ *  The password of the key store is encrypted by the local user's public key
+ *  (decrypted only once), and each key entry is encrypted by the password,
+ *  so a key can be loaded without any asymmetric decryption.
+ */
+public class CipherKeyTable extends ExternalStorage {
+
+    // local user address => password of key store
+    private Map<Address, SymmetricKey> passwords = new HashMap<>();
+
+    // "/sdcard/chat.dim.sechat/.private/{address}/keystore.key"
+    private static String getPasswordFilePath(ID user) {
+        return root + separator
+                + ".private" + separator
+                + user.address + separator
+                + "keystore.key";
+    }
+
+    // "/sdcard/chat.dim.sechat/.private/{address}/keys/{sender}-{receiver}.key"
+    private static String getKeyFilePath(ID user, ID sender, ID receiver) {
+        return root + separator
+                + ".private" + separator
+                + user.address + separator
+                + "keys" + separator
+                + sender.address + "-" + receiver.address + ".key";
+    }
+
+    private SymmetricKey loadPassword(User user) {
+        String path = getPasswordFilePath(user.identifier);
+        StorageWriter.getInstance().flush(path);
+        try {
+            if (!exists(path)) {
+                return null;
+            }
+            byte[] data = user.decrypt(loadData(path));
+            if (data == null) {
+                return null;
+            }
+            return SymmetricKey.getInstance(JSON.decode(data));
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private SymmetricKey createPassword(User user) {
+        SymmetricKey password;
+        try {
+            password = SymmetricKey.generate(SymmetricKey.AES);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+        byte[] data = user.encrypt(JSON.encode(password));
+        if (data == null) {
+            return null;
+        }
+        StorageWriter.getInstance().writeData(data, getPasswordFilePath(user.identifier));
+        return password;
+    }
+
+    private SymmetricKey getPassword(User user, boolean create) {
+        SymmetricKey password = passwords.get(user.identifier.address);
+        if (password == null) {
+            password = loadPassword(user);
+            if (password == null) {
+                String path = getPasswordFilePath(user.identifier);
+                if (!create || exists(path)) {
+                    // failed to decrypt (e.g.: private key not loaded yet),
+                    // do not overwrite it, or the saved keys will be lost
+                    return null;
+                }
+                password = createPassword(user);
+                if (password == null) {
+                    return null;
+                }
+            }
+            passwords.put(user.identifier.address, password);
+        }
+        return password;
+    }
+
+    /**
+     *  Load key entry from local storage
+     *
+     * @param user - local user
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @return key entry {"key": {...}, "time": 0}, null on not found
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> loadKey(User user, ID sender, ID receiver) {
+        String path = getKeyFilePath(user.identifier, sender, receiver);
+        StorageWriter.getInstance().flush(path);
+        if (!exists(path)) {
+            return null;
+        }
+        SymmetricKey password = getPassword(user, false);
+        if (password == null) {
+            return null;
+        }
+        try {
+            byte[] data = password.decrypt(loadData(path));
+            if (data == null) {
+                return null;
+            }
+            return (Map<String, Object>) JSON.decode(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     *  Save key entry into local storage
+     *
+     * @param entry - key entry {"key": {...}, "time": 0}
+     * @param user - local user
+     * @param sender - message sender
+     * @param receiver - message receiver (or group)
+     * @return false on error
+     */
+    public synchronized boolean saveKey(Map<String, Object> entry, User user, ID sender, ID receiver) {
+        SymmetricKey password = getPassword(user, true);
+        if (password == null) {
+            return false;
+        }
+        byte[] data = password.encrypt(JSON.encode(entry));
+        if (data == null) {
+            return false;
+        }
+        return StorageWriter.getInstance().writeData(data, getKeyFilePath(user.identifier, sender, receiver));
+    }
+
+    public synchronized boolean removeKey(User user, ID sender, ID receiver) {
+        return StorageWriter.getInstance().deleteFile(getKeyFilePath(user.identifier, sender, receiver));
+    }
+}
@@ -27,15 +27,20 @@ package chat.dim.database;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import chat.dim.ID;
 import chat.dim.filesys.ExternalStorage;
+import chat.dim.utils.IDPool;
+import chat.dim.utils.IndexedList;
+import chat.dim.utils.JSONReader;
 
 public class ContactTable extends ExternalStorage {
 
-    private List<ID> contactList = null;
-    private ID current = null;
+    // user ID => contacts
+    private Map<ID, IndexedList<ID>> contactsMap = new HashMap<>();
 
     // "/sdcard/chat.dim.sechat/mkm/{address}/contacts.js"
 
@@ -46,65 +51,72 @@ public class ContactTable extends ExternalStorage {
                 + "contacts.js";
     }
 
-    @SuppressWarnings("unchecked")
-    private List<ID> loadContacts(ID user) {
-        assert user != current;
+    private IndexedList<ID> loadContacts(ID user) {
         // reading contacts file in the user's directory
         String path = getContactsFilePath(user);
-        List<String> array;
+        StorageWriter.getInstance().flush(path);
+        IndexedList<ID> contacts = new IndexedList<>();
+        // add contacts one by one
+        JSONReader reader = null;
         try {
-            array = (List<String>) loadJSON(path);
+            reader = JSONReader.open(path);
+            if (reader == null) {
+                return null;
+            }
+            ID contact;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JSONReader.STRING) {
+                    reader.skipValue();
+                    continue;
+                }
+                // FIXME: get ID by facebook
+                contact = IDPool.getInstance().getID(reader.nextString());
+                assert contact.isValid();
+                // duplicated contact will be ignored
+                contacts.add(contact);
+            }
+            reader.endArray();
         } catch (IOException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
         }
-        if (array == null || array.size() == 0) {
+        if (contacts.size() == 0) {
             return null;
         }
-        // add contacts
-        List<ID> contacts = new ArrayList<>();
-        ID contact;
-        for (String item : array) {
-            // FIXME: get ID by facebook
-            contact = ID.getInstance(item);
-            assert contact.isValid();
-            if (contacts.contains(contact)) {
-                continue;
-            }
-            contacts.add(contact);
-        }
         // TODO: sort it
         return contacts;
     }
 
     private boolean saveContacts(ID user) {
+        List<ID> contactList = contactsMap.get(user);
         if (contactList == null) {
             throw new NullPointerException("contacts cannot be empty: " + user);
         }
         String path = getContactsFilePath(user);
-        try {
-            return saveJSON(contactList, path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return StorageWriter.getInstance().writeJSON(new ArrayList<>(contactList), path);
     }
 
     public List<ID> getContacts(ID user) {
         assert user != null;
-        if (user != current) {
-            // user switched, clear contacts
-            contactList = null;
-        }
-        if (contactList == null) {
-            contactList = loadContacts(user);
-            if (contactList == null) {
+        IndexedList<ID> contacts = contactsMap.get(user);
+        if (contacts == null) {
+            contacts = loadContacts(user);
+            if (contacts == null) {
                 // no need to load again
-                contactList = new ArrayList<>();
+                contacts = new IndexedList<>();
             }
+            contactsMap.put(user, contacts);
         }
-        current = user;
-        return contactList;
+        return contacts;
+    }
+
+    public boolean existsContact(ID contact, ID user) {
+        return getContacts(user).contains(contact);
     }
 
     private void sortContacts(List<ID> contacts) {
@@ -113,27 +125,28 @@ public class ContactTable extends ExternalStorage {
 
     public boolean addContact(ID contact, ID user) {
         List<ID> contacts = getContacts(user);
-        if (contacts.contains(contact)) {
+        if (!contacts.add(contact)) {
             return false;
         }
-        contacts.add(contact);
         sortContacts(contacts);
         return saveContacts(user);
     }
 
     public boolean removeContact(ID contact, ID user) {
         List<ID> contacts = getContacts(user);
-        if (!contacts.contains(contact)) {
+        if (!contacts.remove(contact)) {
             return false;
         }
-        contacts.remove(contact);
         sortContacts(contacts);
         return saveContacts(user);
     }
 
     public boolean saveContacts(List<ID> contacts, ID user) {
-        contactList = contacts;
-        current = user;
+        if (contacts instanceof IndexedList) {
+            contactsMap.put(user, (IndexedList<ID>) contacts);
+        } else {
+            contactsMap.put(user, new IndexedList<>(contacts));
+        }
         return saveContacts(user);
     }
 }
@@ -33,10 +33,14 @@ import java.util.Map;
 
 import chat.dim.ID;
 import chat.dim.filesys.ExternalStorage;
+import chat.dim.utils.IDPool;
+import chat.dim.utils.IndexedList;
+import chat.dim.utils.JSONReader;
 
 public class GroupTable extends ExternalStorage {
 
-    private Map<ID, List<ID>> membersMap = new HashMap<>();
+    private Map<ID, IndexedList<ID>> membersMap = new HashMap<>();
+    private Map<ID, ID> founderMap = new HashMap<>();
 
     // "/sdcard/chat.dim.sechat/mkm/{address}/members.js"
 
@@ -47,31 +51,47 @@ public class GroupTable extends ExternalStorage {
                 + "members.js";
     }
 
-    @SuppressWarnings("unchecked")
-    private List<ID> loadMembers(ID group) {
+    private IndexedList<ID> loadMembers(ID group) {
         String path = getMembersFilePath(group);
-        List<String> array;
+        StorageWriter.getInstance().flush(path);
+        IndexedList<ID> memberList = new IndexedList<>();
+        // read members one by one
+        JSONReader reader = null;
         try {
-            array = (List<String>) loadJSON(path);
+            reader = JSONReader.open(path);
+            if (reader == null) {
+                return null;
+            }
+            ID member;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JSONReader.STRING) {
+                    reader.skipValue();
+                    continue;
+                }
+                // FIXME: get ID by facebook
+                member = IDPool.getInstance().getID(reader.nextString());
+                assert member.isValid();
+                // duplicated member will be ignored
+                memberList.add(member);
+            }
+            reader.endArray();
         } catch (IOException e) {
             e.printStackTrace();
             return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
         }
-        if (array == null || array.size() == 0) {
+        if (memberList.size() == 0) {
             return null;
         }
-        List<ID> memberList = new ArrayList<>();
-        ID member;
-        for (String item : array) {
-            // FIXME: get ID by facebook
-            member = ID.getInstance(item);
-            assert member.isValid();
-            if (memberList.contains(member)) {
-                continue;
-            }
-            memberList.add(member);
+        // ensure the founder is at the front
+        ID founder = founderMap.get(group);
+        if (founder != null) {
+            memberList.moveToFront(founder);
         }
-        // TODO: ensure the founder is at the front
         return memberList;
     }
 
@@ -81,17 +101,25 @@ public class GroupTable extends ExternalStorage {
             throw new NullPointerException("group members cannot be empty: " + group);
         }
         String path = getMembersFilePath(group);
-        try {
-            return saveJSON(memberList, path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return StorageWriter.getInstance().writeJSON(new ArrayList<>(memberList), path);
     }
 
     public ID getFounder(ID group) {
-        // TODO: get founder of group
-        return null;
+        return founderMap.get(group);
+    }
+
+    /**
+     *  Remember the founder of group, and move it to the front of members
+     *
+     * @param founder - founder ID (got from group meta)
+     * @param group - group ID
+     */
+    public void setFounder(ID founder, ID group) {
+        founderMap.put(group, founder);
+        IndexedList<ID> members = membersMap.get(group);
+        if (members != null) {
+            members.moveToFront(founder);
+        }
     }
 
     public ID getOwner(ID group) {
@@ -100,39 +128,51 @@ public class GroupTable extends ExternalStorage {
     }
 
     public List<ID> getMembers(ID group) {
-        List<ID> members = membersMap.get(group);
+        IndexedList<ID> members = membersMap.get(group);
         if (members == null) {
             members = loadMembers(group);
             if (members == null) {
                 // no need to load again
-                members = new ArrayList<>();
+                members = new IndexedList<>();
             }
             membersMap.put(group, members);
         }
         return members;
     }
 
+    public boolean existsMember(ID member, ID group) {
+        return getMembers(group).contains(member);
+    }
+
     public boolean addMember(ID member, ID group) {
         List<ID> members = getMembers(group);
-        if (members.contains(member)) {
+        if (!members.add(member)) {
             return false;
         }
-        members.add(member);
         return saveMembers(group);
     }
 
     public boolean removeMember(ID member, ID group) {
         List<ID> members = getMembers(group);
-        if (!members.contains(member)) {
+        if (!members.remove(member)) {
             return false;
         }
-        members.remove(member);
         return saveMembers(group);
     }
 
     public boolean saveMembers(List<ID> members, ID group) {
         assert members.size() > 0;
-        membersMap.put(group, members);
+        IndexedList<ID> memberList;
+        if (members instanceof IndexedList) {
+            memberList = (IndexedList<ID>) members;
+        } else {
+            memberList = new IndexedList<>(members);
+        }
+        ID founder = founderMap.get(group);
+        if (founder != null) {
+            memberList.moveToFront(founder);
+        }
+        membersMap.put(group, memberList);
         return saveMembers(group);
     }
 }
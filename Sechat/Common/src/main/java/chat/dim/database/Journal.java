@@ -0,0 +1,350 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ *  Write-ahead journal for storage files
+ *
+ *      "/sdcard/chat.dim.sechat/storage.wal"
+ *
+ *  Each batch of writes is appended and synced once before the files are
+ *  touched, so after a crash the committed batches can be replayed:
+ *
+ *      +-------+-------+---------+-------+
+ *      | MAGIC | count | entries | CRC32 |
+ *      +-------+-------+---------+-------+
+ *        4B      4B                4B
+ *
+ *      entry: op (1B) + path length (2B) + path + offset (8B) + data length (4B) + data
+ *
+ *  All operations are idempotent (PUT whole file, WRITE at offset, DELETE,
+ *  MOVE if source exists), replaying a batch twice is harmless.
+ *  A batch with MOVE is always alone in the journal (checkpointed before
+ *  and after), so the writes to the replaced files are never replayed.
+ */
+class Journal {
+
+    static final byte PUT    = 1;  // replace file content
+    static final byte WRITE  = 2;  // write data at offset
+    static final byte DELETE = 3;  // remove file
+    static final byte MOVE   = 4;  // rename file, data: target path
+
+    private static final int MAGIC = 0x57414C31;  // "WAL1"
+
+    // sync all written files and restart the journal when it grows over this
+    static int CHECKPOINT_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Entry {
+        final byte op;
+        final String path;
+        final long offset;
+        final byte[] data;
+
+        Entry(byte op, String path, long offset, byte[] data) {
+            super();
+            this.op = op;
+            this.path = path;
+            this.offset = offset;
+            this.data = data;
+        }
+    }
+
+    private final File file;
+
+    // files written since last checkpoint
+    private final Set<String> dirtyPaths = new HashSet<>();
+
+    Journal(String path) {
+        super();
+        file = new File(path);
+    }
+
+    //-------- commit
+
+    private static byte[] pack(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        byte[] path;
+        for (Entry item : entries) {
+            path = item.path.getBytes(UTF_8);
+            out.writeByte(item.op);
+            out.writeShort(path.length);
+            out.write(path);
+            out.writeLong(item.offset);
+            if (item.data == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(item.data.length);
+                out.write(item.data);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     *  Append the batch with one sync, then apply it to the files
+     *
+     * @param entries - writes
+     */
+    void commit(List<Entry> entries) throws IOException {
+        if (entries.size() == 0) {
+            return;
+        }
+        boolean moving = false;
+        for (Entry item : entries) {
+            if (item.op == MOVE) {
+                moving = true;
+                break;
+            }
+        }
+        if (moving) {
+            // the older writes may be for the paths replaced by MOVE,
+            // they must never be replayed after it
+            checkpoint();
+        }
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: " + dir);
+        }
+        long length = file.length();
+        FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            fos.write(pack(entries));
+            fos.getFD().sync();
+        } catch (IOException e) {
+            // drop the torn batch, or the batches appended later will never be replayed
+            rollback(length);
+            throw e;
+        } finally {
+            fos.close();
+        }
+        for (Entry item : entries) {
+            apply(item);
+        }
+        // MOVE depends on the files outside the journal, never replay it after later changes
+        if (moving || file.length() > CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    private void rollback(long length) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void apply(Entry item) throws IOException {
+        File target = new File(item.path);
+        if (item.op == MOVE) {
+            File destination = new File(new String(item.data, UTF_8));
+            if (!target.exists()) {
+                // moved before
+                return;
+            }
+            if (destination.exists() && !destination.delete()) {
+                throw new IOException("failed to replace: " + destination);
+            }
+            if (!target.renameTo(destination)) {
+                throw new IOException("failed to move: " + target + " -> " + destination);
+            }
+            dirtyPaths.remove(item.path);
+            dirtyPaths.add(destination.getPath());
+            return;
+        }
+        if (item.op == DELETE) {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("failed to delete: " + target);
+            }
+            dirtyPaths.remove(item.path);
+            return;
+        }
+        File dir = target.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("failed to create directory: " + dir);
+        }
+        if (item.op == PUT) {
+            FileOutputStream fos = new FileOutputStream(target);
+            try {
+                fos.write(item.data);
+            } finally {
+                fos.close();
+            }
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(target, "rw");
+            try {
+                raf.seek(item.offset);
+                raf.write(item.data);
+            } finally {
+                raf.close();
+            }
+        }
+        dirtyPaths.add(item.path);
+    }
+
+    /**
+     *  Sync all written files, then the journal is no longer needed
+     */
+    void checkpoint() throws IOException {
+        File target;
+        RandomAccessFile raf;
+        for (String path : dirtyPaths) {
+            target = new File(path);
+            if (!target.exists()) {
+                continue;
+            }
+            raf = new RandomAccessFile(target, "rw");
+            try {
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        dirtyPaths.clear();
+        if (file.exists()) {
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    //-------- recovery
+
+    /**
+     *  Replay committed batches after crash
+     *
+     * @return count of batches replayed
+     */
+    int replay() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        byte[] data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        int batches = 0;
+        int offset = 0;
+        List<Entry> entries;
+        while (offset < data.length) {
+            entries = new ArrayList<>();
+            int end = unpack(data, offset, entries);
+            if (end < 0) {
+                // torn tail, not committed
+                break;
+            }
+            for (Entry item : entries) {
+                apply(item);
+            }
+            offset = end;
+            ++batches;
+        }
+        checkpoint();
+        return batches;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    // parse one batch, return the end offset; -1 on error
+    private static int unpack(byte[] data, int start, List<Entry> entries) {
+        int pos = start;
+        try {
+            if (readInt(data, pos) != MAGIC) {
+                return -1;
+            }
+            int count = readInt(data, pos + 4);
+            pos += 8;
+            byte op;
+            int length;
+            String path;
+            long offset;
+            byte[] payload;
+            for (int index = 0; index < count; ++index) {
+                op = data[pos];
+                length = ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+                path = new String(data, pos + 3, length, UTF_8);
+                pos += 3 + length;
+                offset = ((long) readInt(data, pos) << 32)
+                        | (readInt(data, pos + 4) & 0xFFFFFFFFL);
+                length = readInt(data, pos + 8);
+                pos += 12;
+                if (length < 0 || pos + length > data.length) {
+                    return -1;
+                }
+                payload = new byte[length];
+                System.arraycopy(data, pos, payload, 0, length);
+                pos += length;
+                entries.add(new Entry(op, path, offset, payload));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, start, pos - start);
+            if (readInt(data, pos) != (int) crc.getValue()) {
+                return -1;
+            }
+            return pos + 4;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+}
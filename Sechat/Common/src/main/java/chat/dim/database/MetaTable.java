@@ -35,17 +35,41 @@ import chat.dim.filesys.ExternalStorage;
 
 public class MetaTable extends ExternalStorage {
 
-    // profile cache
+    // meta cache
     private Map<ID, Meta> metaTable = new HashMap<>();
+    // IDs without meta in local storage => expired time (milliseconds)
+    private Map<ID, Long> missTable = new HashMap<>();
+
+    // keep a miss for 5 minutes before checking local storage again
+    public static long MISS_EXPIRES = 300 * 1000;
 
     private boolean cache(Meta meta, ID identifier) {
         if (meta.matches(identifier)) {
             metaTable.put(identifier, meta);
+            missTable.remove(identifier);
             return true;
         }
         return false;
     }
 
+    /**
+     *  Check whether the meta was not found in local storage recently
+     *
+     * @param identifier - entity ID
+     * @return true on miss cached
+     */
+    public boolean isMissing(ID identifier) {
+        Long expires = missTable.get(identifier);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            missTable.remove(identifier);
+            return false;
+        }
+        return true;
+    }
+
     // "/sdcard/chat.dim.sechat/mkm/{address}/meta.js"
     private static String getMetaFilePath(ID entity) {
         return root + separator
@@ -87,10 +111,15 @@ public class MetaTable extends ExternalStorage {
         // 1. try from meta cache
         Meta meta = metaTable.get(entity);
         if (meta == null) {
+            if (isMissing(entity)) {
+                // not found recently
+                return null;
+            }
             // 2. load from JsON file
             meta = loadMeta(entity);
             if (meta == null) {
-                // TODO: 3. place an empty meta for cache
+                // 3. remember the miss for a while
+                missTable.put(entity, System.currentTimeMillis() + MISS_EXPIRES);
                 return null;
             }
             // no need to verify meta from local storage
@@ -37,16 +37,40 @@ public class ProfileTable extends ExternalStorage {
 
     // profile cache
     private Map<ID, Profile> profileTable = new HashMap<>();
+    // IDs without profile in local storage => expired time (milliseconds)
+    private Map<ID, Long> missTable = new HashMap<>();
+
+    // keep a miss for 5 minutes before checking local storage again
+    public static long MISS_EXPIRES = 300 * 1000;
 
     private boolean cache(Profile profile) {
         ID identifier = ID.getInstance(profile.getIdentifier());
         if (profile.isValid()) {
             profileTable.put(identifier, profile);
+            missTable.remove(identifier);
             return true;
         }
         return false;
     }
 
+    /**
+     *  Check whether the profile was not found in local storage recently
+     *
+     * @param identifier - entity ID
+     * @return true on miss cached
+     */
+    public boolean isMissing(ID identifier) {
+        Long expires = missTable.get(identifier);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            missTable.remove(identifier);
+            return false;
+        }
+        return true;
+    }
+
     // "/sdcard/chat.dim.sechat/mkm/{address}/profile.js"
     private static String getProfilePath(ID entity) {
         return root + separator
@@ -57,6 +81,7 @@ public class ProfileTable extends ExternalStorage {
 
     private Profile loadProfile(ID entity) {
         String path = getProfilePath(entity);
+        StorageWriter.getInstance().flush(path);
         try {
             Object dict = loadJSON(path);
             return Profile.getInstance(dict);
@@ -73,23 +98,23 @@ public class ProfileTable extends ExternalStorage {
         // write into JsON file
         ID identifier = ID.getInstance(profile.getIdentifier());
         String path = getProfilePath(identifier);
-        try {
-            return saveJSON(profile, path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return StorageWriter.getInstance().writeJSON(profile, path);
     }
 
     public Profile getProfile(ID entity) {
         // 1. try from profile cache
         Profile profile = profileTable.get(entity);
         if (profile == null) {
+            if (isMissing(entity)) {
+                // not found recently
+                return null;
+            }
             // 2. load from JsON file
             profile = loadProfile(entity);
             if (profile == null) {
-                // 3. place an empty profile for cache
-                profile = new Profile(entity);
+                // 3. remember the miss for a while
+                missTable.put(entity, System.currentTimeMillis() + MISS_EXPIRES);
+                return null;
             }
             // no need to verify profile from local storage
             profileTable.put(entity, profile);
@@ -0,0 +1,704 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.JSON;
+import chat.dim.format.UTF8;
+
+/**
+ *  Write-behind storage
+ *
+ *  Tables put their data here instead of writing files on the caller's thread,
+ *  a dedicated storage thread will write them after a short delay.
+ *  Writes to the same path within the delay are coalesced, only the last one
+ *  will be written.
+ *
+ *  All writes of the due tasks are group-committed into the shared journal
+ *  "/sdcard/chat.dim.sechat/storage.wal" with one sync before the files are
+ *  touched, and the journal is replayed on startup (see Journal).
+ *  When a commit failed (e.g.: disk full), the callbacks are told to keep
+ *  their buffered data and submit it again, and the queued writes will be
+ *  retried in the next batch.
+ */
+public final class StorageWriter extends ExternalStorage implements Runnable {
+    private static final StorageWriter ourInstance = new StorageWriter();
+    public static StorageWriter getInstance() { return ourInstance; }
+    private StorageWriter() {
+        super();
+    }
+
+    // delay before writing (milliseconds)
+    public static long DELAY = 500;
+
+    // path => task, in the order of first request
+    private final Map<String, Task> pendingTasks = new LinkedHashMap<>();
+    // keys of the tasks in the running batch
+    private final Set<String> executingKeys = new HashSet<>();
+    // writes and callbacks from other threads, waiting for the next batch
+    private List<Journal.Entry> queuedEntries = new ArrayList<>();
+    private List<CommitCallback> queuedCallbacks = new ArrayList<>();
+    // writes collected by 'batch()' on other threads
+    private final ThreadLocal<List<Journal.Entry>> grouping = new ThreadLocal<>();
+    // locked by the thread committing writes, so the writes will be in order
+    private final Object ioLock = new Object();
+
+    private Journal journal = null;
+    private volatile boolean recovered = false;
+
+    // writes and callbacks of the running batch (locked by ioLock)
+    private List<Journal.Entry> batch = null;
+    private List<CommitCallback> callbacks = null;
+    // taken from the queue by the running batch, queued again on failure
+    private List<Journal.Entry> dequeuedEntries = null;
+    private List<CommitCallback> dequeuedCallbacks = null;
+
+    private Thread thread = null;
+
+    private long requestCount = 0;
+    private long writeCount = 0;
+    private long commitCount = 0;
+    private long failureCount = 0;
+
+    /**
+     *  Result of the writes submitted before
+     */
+    public interface CommitCallback {
+
+        /**
+         *  The writes are durable now
+         */
+        void onCommitted();
+
+        /**
+         *  The writes are lost, keep the data and submit it again
+         */
+        void onFailed();
+    }
+
+    private static abstract class Task {
+        long due = 0;
+
+        abstract void execute() throws IOException;
+    }
+
+    // task key of the queued writes
+    private static final String QUEUE_KEY = "";
+
+    // "/sdcard/chat.dim.sechat/storage.wal"
+    private static String getJournalFilePath() {
+        return root + separator + "storage.wal";
+    }
+
+    /**
+     *  Replay the journal left by last run (only once),
+     *  it will be called automatically before the first read or write
+     */
+    public void recover() {
+        if (recovered) {
+            return;
+        }
+        synchronized (ioLock) {
+            if (recovered) {
+                return;
+            }
+            journal = new Journal(getJournalFilePath());
+            try {
+                journal.replay();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // try only once, the later batches are still journaled
+            recovered = true;
+        }
+    }
+
+    private void schedule(String path, Task task) {
+        recover();
+        synchronized (pendingTasks) {
+            Task old = pendingTasks.get(path);
+            if (old == null) {
+                task.due = System.currentTimeMillis() + DELAY;
+            } else {
+                // coalesced, keep the first due time
+                task.due = old.due;
+            }
+            pendingTasks.put(path, task);
+            ++requestCount;
+            if (thread == null) {
+                thread = new Thread(this, "StorageWriter");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            pendingTasks.notifyAll();
+        }
+    }
+
+    /**
+     *  Save JsON into file later
+     *
+     * @param container - JsON object (the caller should not modify it after this)
+     * @param path - file path
+     * @return true
+     */
+    public boolean writeJSON(final Object container, final String path) {
+        schedule(path, new Task() {
+            @Override
+            void execute() {
+                put(path, JSON.encode(container));
+            }
+        });
+        return true;
+    }
+
+    /**
+     *  Save text into file later
+     *
+     * @param text - file content
+     * @param path - file path
+     * @return true
+     */
+    public boolean writeText(final String text, final String path) {
+        schedule(path, new Task() {
+            @Override
+            void execute() {
+                put(path, UTF8.encode(text));
+            }
+        });
+        return true;
+    }
+
+    /**
+     *  Save data into file later
+     *
+     * @param data - file content (the caller should not modify it after this)
+     * @param path - file path
+     * @return true
+     */
+    public boolean writeData(final byte[] data, final String path) {
+        schedule(path, new Task() {
+            @Override
+            void execute() {
+                put(path, data);
+            }
+        });
+        return true;
+    }
+
+    /**
+     *  Delete file later (pending writes to this path will be discarded)
+     *
+     * @param path - file path
+     * @return true
+     */
+    public boolean deleteFile(final String path) {
+        schedule(path, new Task() {
+            @Override
+            void execute() {
+                remove(path);
+            }
+        });
+        return true;
+    }
+
+    /**
+     *  Run a task later, the task of same key will be run only once
+     *  (e.g.: flush buffered data of a table with 'write()')
+     *
+     * @param key - task key
+     * @param runnable - task
+     */
+    public void post(String key, final Runnable runnable) {
+        schedule(key, new Task() {
+            @Override
+            void execute() {
+                runnable.run();
+            }
+        });
+    }
+
+    //-------- journaled writes
+    //
+    //  Called by a posted task, the write joins the running batch;
+    //  called by other threads, it will be queued for the next batch
+    //  (in order), call 'flush(path)' before reading the file.
+
+    /**
+     *  Replace file content
+     *
+     * @param path - file path
+     * @param data - file content
+     */
+    public void put(String path, byte[] data) {
+        submit(new Journal.Entry(Journal.PUT, path, 0, data));
+    }
+
+    /**
+     *  Write data at the offset of file (e.g.: appending to a log),
+     *  the offset must be given, so replaying it again is harmless
+     *
+     * @param path - file path
+     * @param offset - file position
+     * @param data - data to write
+     */
+    public void write(String path, long offset, byte[] data) {
+        submit(new Journal.Entry(Journal.WRITE, path, offset, data));
+    }
+
+    /**
+     *  Remove file
+     *
+     * @param path - file path
+     */
+    public void remove(String path) {
+        submit(new Journal.Entry(Journal.DELETE, path, 0, null));
+    }
+
+    /**
+     *  Rename file (replace the target)
+     *
+     * @param path - source path
+     * @param target - target path
+     */
+    public void move(String path, String target) {
+        submit(new Journal.Entry(Journal.MOVE, path, 0, UTF8.encode(target)));
+    }
+
+    /**
+     *  Run the writes as one batch, they will be committed together
+     *  (all or nothing after crash)
+     *
+     * @param writes - task calling 'put()', 'write()', 'remove()', 'move()'
+     */
+    public void batch(Runnable writes) {
+        recover();
+        if (Thread.currentThread() != thread) {
+            // collect the writes, and queue them as a whole
+            if (grouping.get() != null) {
+                writes.run();
+                return;
+            }
+            List<Journal.Entry> group = new ArrayList<>();
+            grouping.set(group);
+            try {
+                writes.run();
+            } finally {
+                grouping.remove();
+            }
+            enqueue(group);
+            return;
+        }
+        List<CommitCallback> done;
+        List<Journal.Entry> entries;
+        List<CommitCallback> waiting;
+        boolean committed = true;
+        synchronized (ioLock) {
+            if (batch != null) {
+                // join the running batch
+                writes.run();
+                return;
+            }
+            batch = new ArrayList<>();
+            callbacks = new ArrayList<>();
+            try {
+                writes.run();
+                if (batch.size() > 0) {
+                    committed = commit(batch);
+                }
+            } finally {
+                done = callbacks;
+                entries = dequeuedEntries;
+                waiting = dequeuedCallbacks;
+                batch = null;
+                callbacks = null;
+                dequeuedEntries = null;
+                dequeuedCallbacks = null;
+            }
+            if (!committed) {
+                if (entries != null) {
+                    requeue(entries, waiting);
+                }
+                for (CommitCallback callback : done) {
+                    callback.onFailed();
+                }
+                return;
+            }
+            if (waiting != null) {
+                for (CommitCallback callback : waiting) {
+                    callback.onCommitted();
+                }
+            }
+            for (CommitCallback callback : done) {
+                callback.onCommitted();
+            }
+        }
+    }
+
+    /**
+     *  Run after the writes submitted before are committed
+     *  (e.g.: release the buffered data which is readable from files now),
+     *  it will not run if the commit failed
+     *
+     * @param callback - task
+     */
+    public void afterCommit(final Runnable callback) {
+        afterCommit(new CommitCallback() {
+            @Override
+            public void onCommitted() {
+                callback.run();
+            }
+
+            @Override
+            public void onFailed() {
+                // the caller will submit again
+            }
+        });
+    }
+
+    /**
+     *  Tell the result of the writes submitted before
+     *
+     * @param callback - handler
+     */
+    public void afterCommit(CommitCallback callback) {
+        if (Thread.currentThread() == thread) {
+            synchronized (ioLock) {
+                if (batch != null) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+        } else {
+            synchronized (pendingTasks) {
+                if (queuedEntries.size() > 0) {
+                    queuedCallbacks.add(callback);
+                    return;
+                }
+            }
+        }
+        callback.onCommitted();
+    }
+
+    private void submit(Journal.Entry entry) {
+        recover();
+        if (Thread.currentThread() == thread) {
+            synchronized (ioLock) {
+                if (batch != null) {
+                    batch.add(entry);
+                    return;
+                }
+            }
+        } else {
+            List<Journal.Entry> group = grouping.get();
+            if (group != null) {
+                group.add(entry);
+                return;
+            }
+        }
+        List<Journal.Entry> entries = new ArrayList<>();
+        entries.add(entry);
+        enqueue(entries);
+    }
+
+    // queue the writes, they will be committed by the storage thread
+    private void enqueue(List<Journal.Entry> entries) {
+        if (entries.size() == 0) {
+            return;
+        }
+        synchronized (pendingTasks) {
+            queuedEntries.addAll(entries);
+        }
+        scheduleQueue();
+    }
+
+    private void scheduleQueue() {
+        schedule(QUEUE_KEY, new Task() {
+            @Override
+            void execute() {
+                // the queue is taken by every batch
+            }
+        });
+    }
+
+    // put the writes of the failed batch back, before the writes queued later
+    private void requeue(List<Journal.Entry> entries, List<CommitCallback> waiting) {
+        synchronized (pendingTasks) {
+            entries.addAll(queuedEntries);
+            waiting.addAll(queuedCallbacks);
+            queuedEntries = entries;
+            queuedCallbacks = waiting;
+        }
+        scheduleQueue();
+    }
+
+    // take out the queued writes into the running batch (called by storage thread)
+    private void dequeue() {
+        List<Journal.Entry> entries;
+        List<CommitCallback> done;
+        synchronized (pendingTasks) {
+            if (queuedEntries.size() == 0) {
+                return;
+            }
+            entries = queuedEntries;
+            done = queuedCallbacks;
+            queuedEntries = new ArrayList<>();
+            queuedCallbacks = new ArrayList<>();
+            // 'flush(path)' waits until they are committed
+            executingKeys.add(QUEUE_KEY);
+        }
+        batch.addAll(entries);
+        dequeuedEntries = entries;
+        dequeuedCallbacks = done;
+    }
+
+    // check whether any queued write is for this path (or files in this directory)
+    private boolean isQueued(String path) {
+        for (Journal.Entry entry : queuedEntries) {
+            if (isUnder(entry.path, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnder(String key, String path) {
+        return key.equals(path) || key.startsWith(path + separator);
+    }
+
+    private boolean commit(List<Journal.Entry> entries) {
+        try {
+            journal.commit(entries);
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (pendingTasks) {
+                ++failureCount;
+            }
+            return false;
+        }
+        synchronized (pendingTasks) {
+            writeCount += entries.size();
+            ++commitCount;
+        }
+        return true;
+    }
+
+    // execute tasks and commit all their writes as one batch
+    private void execute(final List<Task> tasks) {
+        batch(new Runnable() {
+            @Override
+            public void run() {
+                // writes queued before these tasks run first
+                dequeue();
+                for (Task task : tasks) {
+                    try {
+                        task.execute();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    //-------- flush
+
+    /**
+     *  Write all pending data now
+     */
+    public void flush() {
+        recover();
+        if (Thread.currentThread() == thread) {
+            // called by a task, it will be committed with the running batch
+            return;
+        }
+        synchronized (pendingTasks) {
+            for (Task task : pendingTasks.values()) {
+                task.due = 0;
+            }
+            pendingTasks.notifyAll();
+            try {
+                while (hasUrgentTask() || executingKeys.size() > 0) {
+                    pendingTasks.wait();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     *  Write pending data of the path now (call it before reading the file)
+     *
+     * @param path - file path (or task key), or directory
+     */
+    public void flush(String path) {
+        recover();
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        synchronized (pendingTasks) {
+            List<String> keys = new ArrayList<>();
+            for (String key : pendingTasks.keySet()) {
+                if (isUnder(key, path) || (key.equals(QUEUE_KEY) && isQueued(path))) {
+                    keys.add(key);
+                }
+            }
+            for (String key : executingKeys) {
+                if (isUnder(key, path) || key.equals(QUEUE_KEY)) {
+                    keys.add(key);
+                }
+            }
+            if (keys.size() == 0) {
+                return;
+            }
+            Task task;
+            for (String key : keys) {
+                task = pendingTasks.get(key);
+                if (task != null) {
+                    task.due = 0;
+                }
+            }
+            pendingTasks.notifyAll();
+            try {
+                while (isFlushing(keys)) {
+                    pendingTasks.wait();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean isFlushing(List<String> keys) {
+        Task task;
+        for (String key : keys) {
+            if (executingKeys.contains(key)) {
+                return true;
+            }
+            task = pendingTasks.get(key);
+            if (task != null && task.due == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasUrgentTask() {
+        for (Task task : pendingTasks.values()) {
+            if (task.due == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // take out the tasks which are due
+    private List<Task> dueTasks() {
+        List<Task> tasks = new ArrayList<>();
+        synchronized (pendingTasks) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Task>> iterator = pendingTasks.entrySet().iterator();
+            Map.Entry<String, Task> entry;
+            while (iterator.hasNext()) {
+                entry = iterator.next();
+                if (entry.getValue().due <= now) {
+                    tasks.add(entry.getValue());
+                    executingKeys.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        return tasks;
+    }
+
+    // wait until any task is due
+    private void waitTasks() throws InterruptedException {
+        synchronized (pendingTasks) {
+            long now, next;
+            while (true) {
+                now = System.currentTimeMillis();
+                next = -1;
+                for (Task task : pendingTasks.values()) {
+                    if (next < 0 || task.due < next) {
+                        next = task.due;
+                    }
+                }
+                if (next >= 0 && next <= now) {
+                    break;
+                }
+                // wait for next due time (or new task)
+                pendingTasks.wait(next < 0 ? 0 : next - now);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                waitTasks();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            try {
+                execute(dueTasks());
+            } finally {
+                synchronized (pendingTasks) {
+                    executingKeys.clear();
+                    pendingTasks.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     *  Get write info: requests, writes, commits (syncs), failures, pending
+     *
+     * @return statistics
+     */
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> info = new HashMap<>();
+        synchronized (pendingTasks) {
+            info.put("requests", requestCount);
+            info.put("writes", writeCount);
+            info.put("commits", commitCount);
+            info.put("failures", failureCount);
+            info.put("pending", pendingTasks.size());
+        }
+        return info;
+    }
+}
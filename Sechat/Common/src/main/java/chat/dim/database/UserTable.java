@@ -31,6 +31,7 @@ import java.util.List;
 
 import chat.dim.ID;
 import chat.dim.filesys.ExternalStorage;
+import chat.dim.utils.IDPool;
 
 public class UserTable extends ExternalStorage {
 
@@ -48,12 +49,7 @@ public class UserTable extends ExternalStorage {
         assert userList != null;
         // save into storage
         String path = getUsersFilePath();
-        try {
-            return saveJSON(userList, path);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return StorageWriter.getInstance().writeJSON(new ArrayList<>(userList), path);
     }
 
     private boolean loadUsers() {
@@ -61,6 +57,7 @@ public class UserTable extends ExternalStorage {
         userList = new ArrayList<>();
         // loading from storage
         String path = getUsersFilePath();
+        StorageWriter.getInstance().flush(path);
         List list;
         try {
             list = (List) loadJSON(path);
@@ -74,7 +71,7 @@ public class UserTable extends ExternalStorage {
         ID user;
         for (Object item : list) {
             // FIXME: get ID by facebook
-            user = ID.getInstance(item);
+            user = IDPool.getInstance().getID(item);
             if (userList.contains(user)) {
                 continue;
             }
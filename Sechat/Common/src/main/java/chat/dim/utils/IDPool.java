@@ -0,0 +1,165 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import chat.dim.ID;
+
+/**
+ *  Interning pool for ID
+ *
+ *  Each distinct identifier string will be parsed only once, and the ID object
+ *  will be shared until no one holds it (weak reference).
+ */
+public final class IDPool {
+    private static final IDPool ourInstance = new IDPool();
+    public static IDPool getInstance() { return ourInstance; }
+    private IDPool() {
+        super();
+    }
+
+    // estimated heap size of an ID object without its string (ID + Address + name)
+    private static final int ID_OVERHEAD = 96;
+
+    private final Map<String, Entry> pool = new HashMap<>();
+    private final ReferenceQueue<ID> queue = new ReferenceQueue<>();
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long savedBytes = 0;
+
+    private static class Entry extends WeakReference<ID> {
+        final String key;
+
+        Entry(String key, ID identifier, ReferenceQueue<ID> queue) {
+            super(identifier, queue);
+            this.key = key;
+        }
+    }
+
+    // remove entries of collected IDs
+    private void purge() {
+        Entry entry;
+        while ((entry = (Entry) queue.poll()) != null) {
+            if (pool.get(entry.key) == entry) {
+                pool.remove(entry.key);
+            }
+        }
+    }
+
+    private ID get(String key) {
+        Entry entry = pool.get(key);
+        return entry == null ? null : entry.get();
+    }
+
+    private void put(String key, ID identifier) {
+        pool.put(key, new Entry(key, identifier, queue));
+    }
+
+    private void hit(String key) {
+        ++hitCount;
+        // the string and ID object parsed from it are not allocated again
+        savedBytes += ID_OVERHEAD + key.length() * 2;
+    }
+
+    /**
+     *  Get shared ID object, parse it only when not found
+     *
+     * @param string - ID string (or ID object)
+     * @return ID object
+     */
+    public synchronized ID getID(Object string) {
+        if (string == null) {
+            return null;
+        }
+        purge();
+        String key = string.toString();
+        ID identifier = get(key);
+        if (identifier != null) {
+            hit(key);
+            return identifier;
+        }
+        ++missCount;
+        if (string instanceof ID) {
+            identifier = (ID) string;
+        } else {
+            identifier = ID.getInstance(string);
+            if (identifier == null) {
+                return null;
+            }
+        }
+        put(key, identifier);
+        return identifier;
+    }
+
+    /**
+     *  Get shared ID object without parsing
+     *
+     * @param string - ID string
+     * @return null on not found
+     */
+    public synchronized ID lookup(Object string) {
+        if (string == null) {
+            return null;
+        }
+        purge();
+        String key = string.toString();
+        ID identifier = get(key);
+        if (identifier != null) {
+            hit(key);
+        }
+        return identifier;
+    }
+
+    /**
+     *  Share the ID object created by others (e.g.: Facebook)
+     *
+     * @param identifier - ID object
+     * @return shared ID object
+     */
+    public ID intern(ID identifier) {
+        return getID(identifier);
+    }
+
+    /**
+     *  Get pool info: size, hits, misses, saved (estimated bytes)
+     *
+     * @return statistics
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        purge();
+        Map<String, Object> info = new HashMap<>();
+        info.put("size", pool.size());
+        info.put("hits", hitCount);
+        info.put("misses", missCount);
+        info.put("saved", savedBytes);
+        return info;
+    }
+}
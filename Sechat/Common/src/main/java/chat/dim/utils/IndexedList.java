@@ -0,0 +1,161 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Insertion-ordered list with hash index
+ *
+ *  contains() costs O(1), duplicated elements will be ignored.
+ */
+public class IndexedList<E> extends AbstractList<E> {
+
+    private final List<E> elements;
+    private final Set<E> index;
+
+    public IndexedList() {
+        super();
+        elements = new ArrayList<>();
+        index = new HashSet<>();
+    }
+
+    public IndexedList(Collection<? extends E> collection) {
+        super();
+        elements = new ArrayList<>(collection.size());
+        index = new HashSet<>(collection.size() * 2);
+        addAll(collection);
+    }
+
+    @Override
+    public E get(int location) {
+        return elements.get(location);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return index.contains(element);
+    }
+
+    @Override
+    public int indexOf(Object element) {
+        if (!index.contains(element)) {
+            return -1;
+        }
+        return elements.indexOf(element);
+    }
+
+    @Override
+    public int lastIndexOf(Object element) {
+        return indexOf(element);
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (index.contains(element)) {
+            return false;
+        }
+        add(elements.size(), element);
+        return true;
+    }
+
+    @Override
+    public void add(int location, E element) {
+        if (!index.add(element)) {
+            // duplicated
+            return;
+        }
+        elements.add(location, element);
+        ++modCount;
+    }
+
+    @Override
+    public E set(int location, E element) {
+        E old = elements.get(location);
+        if (old == null ? element == null : old.equals(element)) {
+            return old;
+        }
+        if (index.contains(element)) {
+            throw new IllegalArgumentException("duplicated element: " + element);
+        }
+        index.remove(old);
+        index.add(element);
+        return elements.set(location, element);
+    }
+
+    @Override
+    public E remove(int location) {
+        E element = elements.remove(location);
+        index.remove(element);
+        ++modCount;
+        return element;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        if (!index.remove(element)) {
+            return false;
+        }
+        elements.remove(element);
+        ++modCount;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        index.clear();
+        ++modCount;
+    }
+
+    /**
+     *  Move the element to the front
+     *
+     * @param element - existed element
+     * @return false on not found
+     */
+    public boolean moveToFront(E element) {
+        int pos = indexOf(element);
+        if (pos < 0) {
+            return false;
+        } else if (pos > 0) {
+            elements.remove(pos);
+            elements.add(0, element);
+            ++modCount;
+        }
+        return true;
+    }
+}
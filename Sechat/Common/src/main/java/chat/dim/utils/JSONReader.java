@@ -0,0 +1,457 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Pull-based JsON reader
+ *
+ *  Read a JsON document token by token, so a large array can be processed
+ *  element by element without decoding the whole file:
+ *
+ *      reader.beginArray();
+ *      while (reader.hasNext()) {
+ *          Object item = reader.readValue();
+ *          ...
+ *      }
+ *      reader.endArray();
+ */
+public class JSONReader implements Closeable {
+
+    // token types
+    public static final int BEGIN_ARRAY  = 1;
+    public static final int END_ARRAY    = 2;
+    public static final int BEGIN_OBJECT = 3;
+    public static final int END_OBJECT   = 4;
+    public static final int NAME         = 5;
+    public static final int STRING       = 6;
+    public static final int NUMBER       = 7;
+    public static final int BOOLEAN      = 8;
+    public static final int NULL         = 9;
+    public static final int END_DOCUMENT = 10;
+
+    // scopes
+    private static final int EMPTY_ARRAY     = 1;
+    private static final int NONEMPTY_ARRAY  = 2;
+    private static final int EMPTY_OBJECT    = 3;
+    private static final int DANGLING_NAME   = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+    private static final int DOCUMENT        = 6;
+
+    private final Reader in;
+
+    private final char[] buffer = new char[4096];
+    private int pos = 0;
+    private int limit = 0;
+
+    private int[] stack = new int[32];
+    private int depth = 0;
+
+    private int peeked = 0;
+
+    public JSONReader(Reader in) {
+        super();
+        this.in = in;
+        stack[depth++] = DOCUMENT;
+    }
+
+    /**
+     *  Open JsON file for reading
+     *
+     * @param path - file path
+     * @return null on file not found
+     */
+    public static JSONReader open(String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+            return null;
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"));
+        return new JSONReader(new BufferedReader(reader));
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //-------- characters
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        limit = in.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit < 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        char ch;
+        while (fill()) {
+            ch = buffer[pos++];
+            if (ch != ' ' && ch != '\n' && ch != '\r' && ch != '\t') {
+                return ch;
+            }
+        }
+        return -1;
+    }
+
+    private char nextChar() throws IOException {
+        if (!fill()) {
+            throw syntaxError("unexpected end of input");
+        }
+        return buffer[pos++];
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("JsON syntax error: " + message);
+    }
+
+    private void push(int scope) {
+        if (depth == stack.length) {
+            int[] array = new int[depth * 2];
+            System.arraycopy(stack, 0, array, 0, depth);
+            stack = array;
+        }
+        stack[depth++] = scope;
+    }
+
+    //-------- tokens
+
+    /**
+     *  Get type of next token without consuming it
+     *
+     * @return token type
+     */
+    public int peek() throws IOException {
+        if (peeked != 0) {
+            return peeked;
+        }
+        int scope = stack[depth - 1];
+        int ch;
+        if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+            ch = nextNonWhitespace();
+            if (ch == ']') {
+                return peeked = END_ARRAY;
+            }
+            if (scope == NONEMPTY_ARRAY) {
+                if (ch != ',') {
+                    throw syntaxError("expected ',' or ']'");
+                }
+                ch = nextNonWhitespace();
+            }
+            stack[depth - 1] = NONEMPTY_ARRAY;
+            return peeked = peekValue(ch);
+        } else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+            ch = nextNonWhitespace();
+            if (ch == '}') {
+                return peeked = END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (ch != ',') {
+                    throw syntaxError("expected ',' or '}'");
+                }
+                ch = nextNonWhitespace();
+            }
+            if (ch != '"') {
+                throw syntaxError("expected name");
+            }
+            stack[depth - 1] = DANGLING_NAME;
+            return peeked = NAME;
+        } else if (scope == DANGLING_NAME) {
+            if (nextNonWhitespace() != ':') {
+                throw syntaxError("expected ':'");
+            }
+            stack[depth - 1] = NONEMPTY_OBJECT;
+            return peeked = peekValue(nextNonWhitespace());
+        } else {
+            // DOCUMENT
+            ch = nextNonWhitespace();
+            if (ch < 0) {
+                return peeked = END_DOCUMENT;
+            }
+            return peeked = peekValue(ch);
+        }
+    }
+
+    // the first char of value has been consumed (except for literals and numbers)
+    private int peekValue(int ch) throws IOException {
+        switch (ch) {
+            case '[':
+                return BEGIN_ARRAY;
+            case '{':
+                return BEGIN_OBJECT;
+            case '"':
+                return STRING;
+            case 't':
+            case 'f':
+                --pos;
+                return BOOLEAN;
+            case 'n':
+                --pos;
+                return NULL;
+            case -1:
+                throw syntaxError("unexpected end of input");
+            default:
+                if (ch == '-' || (ch >= '0' && ch <= '9')) {
+                    --pos;
+                    return NUMBER;
+                }
+                throw syntaxError("unexpected character: " + (char) ch);
+        }
+    }
+
+    private void expect(int token) throws IOException {
+        if (peek() != token) {
+            throw new IllegalStateException("expected token " + token + " but was " + peeked);
+        }
+        peeked = 0;
+    }
+
+    public boolean hasNext() throws IOException {
+        int token = peek();
+        return token != END_ARRAY && token != END_OBJECT && token != END_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(END_ARRAY);
+        --depth;
+    }
+
+    public void beginObject() throws IOException {
+        expect(BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(END_OBJECT);
+        --depth;
+    }
+
+    public String nextName() throws IOException {
+        expect(NAME);
+        return readString();
+    }
+
+    public String nextString() throws IOException {
+        expect(STRING);
+        return readString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(BOOLEAN);
+        String word = readWord();
+        if (word.equals("true")) {
+            return true;
+        } else if (word.equals("false")) {
+            return false;
+        }
+        throw syntaxError("unexpected literal: " + word);
+    }
+
+    public void nextNull() throws IOException {
+        expect(NULL);
+        String word = readWord();
+        if (!word.equals("null")) {
+            throw syntaxError("unexpected literal: " + word);
+        }
+    }
+
+    /**
+     *  Read a number: Integer, Long, BigInteger or BigDecimal
+     *
+     * @return number value
+     */
+    public Number nextNumber() throws IOException {
+        expect(NUMBER);
+        String text = readWord();
+        try {
+            if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                BigInteger value = new BigInteger(text);
+                if (value.bitLength() < 32) {
+                    return value.intValue();
+                } else if (value.bitLength() < 64) {
+                    return value.longValue();
+                }
+                return value;
+            }
+            return new BigDecimal(text);
+        } catch (NumberFormatException e) {
+            throw syntaxError("number: " + text);
+        }
+    }
+
+    /**
+     *  Skip next value (with all its children)
+     */
+    public void skipValue() throws IOException {
+        readValue(false);
+    }
+
+    /**
+     *  Read next value as Map/List/String/Number/Boolean/null
+     *
+     * @return value
+     */
+    public Object readValue() throws IOException {
+        return readValue(true);
+    }
+
+    private Object readValue(boolean keep) throws IOException {
+        switch (peek()) {
+            case BEGIN_ARRAY: {
+                List<Object> list = keep ? new ArrayList<>() : null;
+                beginArray();
+                while (hasNext()) {
+                    Object item = readValue(keep);
+                    if (keep) {
+                        list.add(item);
+                    }
+                }
+                endArray();
+                return list;
+            }
+            case BEGIN_OBJECT: {
+                Map<String, Object> map = keep ? new LinkedHashMap<String, Object>() : null;
+                beginObject();
+                String name;
+                while (hasNext()) {
+                    name = nextName();
+                    Object value = readValue(keep);
+                    if (keep) {
+                        map.put(name, value);
+                    }
+                }
+                endObject();
+                return map;
+            }
+            case STRING:
+                return nextString();
+            case NUMBER:
+                return nextNumber();
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("unexpected token: " + peeked);
+        }
+    }
+
+    //-------- literals
+
+    private String readWord() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char ch;
+        while (fill()) {
+            ch = buffer[pos];
+            if (ch == ',' || ch == ']' || ch == '}' || ch == ':'
+                    || ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t') {
+                break;
+            }
+            sb.append(ch);
+            ++pos;
+        }
+        return sb.toString();
+    }
+
+    // read string after the opening quote
+    private String readString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char ch;
+        while (true) {
+            ch = nextChar();
+            if (ch == '"') {
+                return sb.toString();
+            } else if (ch != '\\') {
+                sb.append(ch);
+                continue;
+            }
+            ch = nextChar();
+            switch (ch) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u': {
+                    int code = 0;
+                    for (int i = 0; i < 4; ++i) {
+                        code = (code << 4) | Character.digit(nextChar(), 16);
+                    }
+                    if (code < 0) {
+                        throw syntaxError("bad unicode escape");
+                    }
+                    sb.append((char) code);
+                    break;
+                }
+                default:
+                    // '"', '\\', '/'
+                    sb.append(ch);
+                    break;
+            }
+        }
+    }
+}
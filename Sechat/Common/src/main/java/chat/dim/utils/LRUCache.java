@@ -0,0 +1,173 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Least Recently Used cache with size accounting
+ *
+ *  Override sizeOf() to measure entries with your own unit (items, bytes, ...),
+ *  the least recently used entries will be evicted when the total size
+ *  exceeds the capacity.
+ */
+public class LRUCache<K, V> {
+
+    private final Map<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long capacity;
+    private long size = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public LRUCache(long capacity) {
+        super();
+        this.capacity = capacity;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        long size;
+
+        Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     *  Get size of the entry, default is 1
+     *
+     * @param key - entry key
+     * @param value - entry value
+     * @return size
+     */
+    protected long sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     *  Called after an entry was evicted
+     *
+     * @param key - entry key
+     * @param value - entry value
+     */
+    protected void onEvicted(K key, V value) {
+        // override for cleaning up
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry.value;
+    }
+
+    /**
+     *  Put the entry into cache, or measure the existed entry again
+     *
+     * @param key - entry key
+     * @param value - entry value
+     * @return previous value
+     */
+    public synchronized V put(K key, V value) {
+        Entry<V> entry = new Entry<>(value, sizeOf(key, value));
+        Entry<V> previous = map.put(key, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+        trimToSize(capacity);
+        return previous == null ? null : previous.value;
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = map.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        size -= entry.size;
+        return entry.value;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<K, Entry<V>>> iterator = map.entrySet().iterator();
+        Map.Entry<K, Entry<V>> eldest;
+        // keep the most recently used entry
+        while (size > maxSize && map.size() > 1 && iterator.hasNext()) {
+            eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue().size;
+            ++evictionCount;
+            onEvicted(eldest.getKey(), eldest.getValue().value);
+        }
+    }
+
+    //-------- statistics
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        trimToSize(capacity);
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LRUCache{entries=" + map.size() + ", size=" + size + "/" + capacity
+                + ", hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + "}";
+    }
+}
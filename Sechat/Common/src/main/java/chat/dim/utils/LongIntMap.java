@@ -0,0 +1,165 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import java.util.Arrays;
+
+/**
+ *  Hash map from long to int without boxing
+ *
+ *  Open addressing with linear probing, the values must not be negative
+ *  (-1 means absent).
+ */
+public final class LongIntMap {
+
+    private long[] keys;
+    private int[] values;  // -1 for empty slot
+    private int size = 0;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int capacity) {
+        super();
+        int length = 16;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+        keys = new long[length];
+        values = new int[length];
+        Arrays.fill(values, -1);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] >= 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     *  Get value for key
+     *
+     * @param key - long key
+     * @return value, -1 on not found
+     */
+    public int get(long key) {
+        return values[slotOf(key)];
+    }
+
+    /**
+     *  Set value for key
+     *
+     * @param key - long key
+     * @param value - non-negative value
+     * @return old value, -1 on new key
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        int slot = slotOf(key);
+        int old = values[slot];
+        if (old < 0) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                slot = slotOf(key);
+            }
+            keys[slot] = key;
+            ++size;
+        }
+        values[slot] = value;
+        return old;
+    }
+
+    /**
+     *  Remove key
+     *
+     * @param key - long key
+     * @return old value, -1 on not found
+     */
+    public int remove(long key) {
+        int slot = slotOf(key);
+        int old = values[slot];
+        if (old < 0) {
+            return -1;
+        }
+        // shift back the following entries in the same probe sequence
+        int mask = keys.length - 1;
+        int next = slot;
+        int home;
+        while (true) {
+            next = (next + 1) & mask;
+            if (values[next] < 0) {
+                break;
+            }
+            home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                slot = next;
+            }
+        }
+        values[slot] = -1;
+        --size;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(values, -1);
+        size = 0;
+    }
+
+    private void resize(int length) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[length];
+        values = new int[length];
+        Arrays.fill(values, -1);
+        int slot;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] >= 0) {
+                slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.common;
+
+import chat.dim.ID;
+import chat.dim.crypto.SymmetricKey;
+import chat.dim.digest.SHA256;
+import chat.dim.format.Base64;
+
+/**
+ *  CPU benchmark: key digest for each serialized message,
+ *  computing it every time vs caching it with the key in KeyStore
+ */
+public class KeyDigestBenchmark {
+
+    // what 'attachKeyDigest()' did for each message before
+    private static String computeDigest(KeyStore keyStore, ID sender, ID receiver) {
+        SymmetricKey key = keyStore.getCipherKey(sender, receiver);
+        byte[] data = key.getData();
+        byte[] part = new byte[6];
+        System.arraycopy(data, data.length - 6, part, 0, 6);
+        String base64 = Base64.encode(SHA256.digest(part));
+        return base64.substring(base64.length() - 8);
+    }
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        ID sender = ID.getInstance("moky@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ");
+        ID receiver = ID.getInstance("hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj");
+        KeyStore keyStore = KeyStore.getInstance();
+        keyStore.cacheCipherKey(sender, receiver, SymmetricKey.generate(SymmetricKey.AES));
+
+        String computed = null;
+        String cached = null;
+        // warm up
+        for (int index = 0; index < rounds / 10; ++index) {
+            computed = computeDigest(keyStore, sender, receiver);
+            cached = keyStore.getKeyDigest(sender, receiver);
+        }
+        if (!computed.equals(cached)) {
+            throw new AssertionError("digest mismatch: " + computed + ", " + cached);
+        }
+
+        // 1. compute digest for each message
+        long start = System.nanoTime();
+        for (int index = 0; index < rounds; ++index) {
+            computed = computeDigest(keyStore, sender, receiver);
+        }
+        long computing = System.nanoTime() - start;
+
+        // 2. get digest cached with the key
+        start = System.nanoTime();
+        for (int index = 0; index < rounds; ++index) {
+            cached = keyStore.getKeyDigest(sender, receiver);
+        }
+        long caching = System.nanoTime() - start;
+
+        System.out.println("messages: " + rounds + ", digest: " + computed + " / " + cached);
+        System.out.println("computing: " + computing / rounds + " ns/msg, cached: " + caching / rounds + " ns/msg");
+    }
+}
@@ -0,0 +1,212 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.format.UTF8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File wal;
+    private String first;
+    private String second;
+
+    @Before
+    public void setUp() {
+        wal = new File(folder.getRoot(), "storage.wal");
+        first = new File(folder.getRoot(), "first.dat").getPath();
+        second = new File(folder.getRoot(), "second.dat").getPath();
+    }
+
+    private static List<Journal.Entry> entries(Journal.Entry... items) {
+        List<Journal.Entry> list = new ArrayList<>();
+        for (Journal.Entry item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private static byte[] read(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // commit two batches, then lose the files as if they were not synced
+    private long commitAndCrash(Journal journal) throws IOException {
+        journal.commit(entries(
+                new Journal.Entry(Journal.PUT, first, 0, UTF8.encode("hello")),
+                new Journal.Entry(Journal.WRITE, first, 5, UTF8.encode(" world"))));
+        long length = wal.length();
+        journal.commit(entries(
+                new Journal.Entry(Journal.PUT, second, 0, UTF8.encode("second")),
+                new Journal.Entry(Journal.WRITE, first, 0, UTF8.encode("H"))));
+        assertTrue(new File(first).delete());
+        assertTrue(new File(second).delete());
+        return length;
+    }
+
+    @Test
+    public void replaysCommittedBatches() throws IOException {
+        commitAndCrash(new Journal(wal.getPath()));
+
+        Journal journal = new Journal(wal.getPath());
+        assertEquals(2, journal.replay());
+        assertArrayEquals(UTF8.encode("Hello world"), read(first));
+        assertArrayEquals(UTF8.encode("second"), read(second));
+        // checkpointed
+        assertEquals(0, wal.length());
+        assertEquals(0, journal.replay());
+    }
+
+    @Test
+    public void skipsTornLastBatch() throws IOException {
+        long length = commitAndCrash(new Journal(wal.getPath()));
+        // the last batch was not completely written
+        truncate(wal, wal.length() - 3);
+
+        Journal journal = new Journal(wal.getPath());
+        assertEquals(1, journal.replay());
+        assertArrayEquals(UTF8.encode("hello world"), read(first));
+        assertFalse(new File(second).exists());
+        assertEquals(0, wal.length());
+
+        // only the header of the last batch
+        commitAndCrash(new Journal(wal.getPath()));
+        truncate(wal, length + 8);
+        assertEquals(1, new Journal(wal.getPath()).replay());
+        assertArrayEquals(UTF8.encode("hello world"), read(first));
+        assertFalse(new File(second).exists());
+    }
+
+    @Test
+    public void skipsCorruptedLastBatch() throws IOException {
+        commitAndCrash(new Journal(wal.getPath()));
+        // flip a byte in the last batch, the checksum will not match
+        RandomAccessFile raf = new RandomAccessFile(wal, "rw");
+        try {
+            raf.seek(raf.length() - 6);
+            int ch = raf.read();
+            raf.seek(raf.length() - 6);
+            raf.write(ch ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, new Journal(wal.getPath()).replay());
+        assertArrayEquals(UTF8.encode("hello world"), read(first));
+        assertFalse(new File(second).exists());
+    }
+
+    @Test
+    public void replaysDeleteAndMove() throws IOException {
+        Journal journal = new Journal(wal.getPath());
+        journal.commit(entries(
+                new Journal.Entry(Journal.PUT, first, 0, UTF8.encode("first")),
+                new Journal.Entry(Journal.PUT, second, 0, UTF8.encode("second")),
+                new Journal.Entry(Journal.DELETE, second, 0, null)));
+        assertFalse(new File(second).exists());
+        assertTrue(wal.length() > 0);
+        // replaying again is harmless
+        assertEquals(1, new Journal(wal.getPath()).replay());
+        assertArrayEquals(UTF8.encode("first"), read(first));
+        assertFalse(new File(second).exists());
+
+        journal.commit(entries(
+                new Journal.Entry(Journal.MOVE, first, 0, UTF8.encode(second))));
+        assertFalse(new File(first).exists());
+        assertArrayEquals(UTF8.encode("first"), read(second));
+        // a batch with move is checkpointed at once
+        assertEquals(0, wal.length());
+    }
+
+    @Test
+    public void neverReplaysWritesBeforeMove() throws IOException {
+        Journal journal = new Journal(wal.getPath());
+        journal.commit(entries(
+                new Journal.Entry(Journal.WRITE, first, 0, UTF8.encode("old records"))));
+        // the new file is written outside of the journal (e.g.: compacted)
+        String staging = new File(folder.getRoot(), "staging.dat").getPath();
+        FileOutputStream fos = new FileOutputStream(staging);
+        try {
+            fos.write(UTF8.encode("new"));
+        } finally {
+            fos.close();
+        }
+        // crash after the move applied, before the checkpoint
+        File blocker = new File(folder.getRoot(), "blocker");
+        assertTrue(blocker.createNewFile());
+        String blocked = new File(blocker, "file.dat").getPath();
+        try {
+            journal.commit(entries(
+                    new Journal.Entry(Journal.MOVE, staging, 0, UTF8.encode(first)),
+                    new Journal.Entry(Journal.PUT, blocked, 0, UTF8.encode("blocked"))));
+            fail("parent of the file is not a directory");
+        } catch (IOException e) {
+            assertArrayEquals(UTF8.encode("new"), read(first));
+        }
+        assertTrue(blocker.delete());
+
+        assertEquals(1, new Journal(wal.getPath()).replay());
+        // the old write is not replayed on the new file
+        assertArrayEquals(UTF8.encode("new"), read(first));
+        assertArrayEquals(UTF8.encode("blocked"), read(blocked));
+    }
+}
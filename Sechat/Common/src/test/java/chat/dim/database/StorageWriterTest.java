@@ -0,0 +1,199 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.format.UTF8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StorageWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StorageWriter writer;
+    private String dir;
+
+    @Before
+    public void setUp() {
+        // the journal is opened in the first root only
+        ExternalStorage.root = folder.getRoot().getPath();
+        writer = StorageWriter.getInstance();
+        dir = new File(folder.getRoot(), "data").getPath();
+    }
+
+    private String pathOf(String name) {
+        return dir + File.separator + name;
+    }
+
+    private static byte[] read(String path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void queuedWritesAreInOrder() throws IOException {
+        String path = pathOf("a.log");
+        writer.put(path, UTF8.encode("hello"));
+        writer.write(path, 5, UTF8.encode(" world"));
+        writer.write(path, 0, UTF8.encode("H"));
+        writer.flush(dir);
+        assertArrayEquals(UTF8.encode("Hello world"), read(path));
+
+        writer.remove(path);
+        writer.flush(path);
+        assertFalse(new File(path).exists());
+    }
+
+    @Test
+    public void batchIsCommittedTogether() throws IOException {
+        final String source = pathOf("source.tmp");
+        final String target = pathOf("target.dat");
+        final String other = pathOf("other.dat");
+        writer.put(target, UTF8.encode("old"));
+        writer.batch(new Runnable() {
+            @Override
+            public void run() {
+                writer.put(source, UTF8.encode("new"));
+                writer.put(other, UTF8.encode("other"));
+                writer.move(source, target);
+            }
+        });
+        writer.flush(dir);
+        assertFalse(new File(source).exists());
+        assertArrayEquals(UTF8.encode("new"), read(target));
+        assertArrayEquals(UTF8.encode("other"), read(other));
+    }
+
+    @Test
+    public void callbackRunsAfterCommit() throws IOException {
+        final String path = pathOf("b.log");
+        final AtomicInteger size = new AtomicInteger(-1);
+        writer.put(path, new byte[10]);
+        writer.afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                size.set((int) new File(path).length());
+            }
+        });
+        writer.flush(path);
+        assertEquals(10, size.get());
+    }
+
+    @Test
+    public void postedTasksAreCoalesced() throws IOException {
+        final String path = pathOf("c.log");
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        writer.post(path, new Runnable() {
+            @Override
+            public void run() {
+                first.incrementAndGet();
+            }
+        });
+        writer.post(path, new Runnable() {
+            @Override
+            public void run() {
+                second.incrementAndGet();
+                // joins the running batch
+                writer.put(path, UTF8.encode("posted"));
+            }
+        });
+        writer.flush(path);
+        assertEquals(0, first.get());
+        assertEquals(1, second.get());
+        assertTrue(new File(path).exists());
+        assertArrayEquals(UTF8.encode("posted"), read(path));
+    }
+
+    @Test
+    public void flushWaitsForDirectory() throws IOException {
+        for (int i = 0; i < 20; ++i) {
+            writer.put(pathOf("f" + i), UTF8.encode("file " + i));
+        }
+        writer.flush(dir);
+        for (int i = 0; i < 20; ++i) {
+            assertArrayEquals(UTF8.encode("file " + i), read(pathOf("f" + i)));
+        }
+    }
+
+    @Test
+    public void retriesFailedCommit() throws IOException {
+        // the parent of the file is not a directory, the commit fails
+        File blocker = new File(folder.getRoot(), "blocker");
+        assertTrue(blocker.createNewFile());
+        String path = new File(blocker, "d.log").getPath();
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final StorageWriter.CommitCallback callback = new StorageWriter.CommitCallback() {
+            @Override
+            public void onCommitted() {
+                committed.incrementAndGet();
+            }
+
+            @Override
+            public void onFailed() {
+                failed.incrementAndGet();
+            }
+        };
+        writer.post(path, new Runnable() {
+            @Override
+            public void run() {
+                writer.afterCommit(callback);
+            }
+        });
+        writer.put(path, UTF8.encode("retried"));
+        writer.flush(path);
+        assertEquals(0, committed.get());
+        assertEquals(1, failed.get());
+        assertFalse(new File(path).exists());
+
+        // the queued write is kept and retried
+        assertTrue(blocker.delete());
+        writer.flush(path);
+        assertArrayEquals(UTF8.encode("retried"), read(path));
+    }
+}
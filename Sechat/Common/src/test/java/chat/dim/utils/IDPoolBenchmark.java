@@ -0,0 +1,74 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import chat.dim.ID;
+
+/**
+ *  Heap benchmark: parsing IDs vs interning them by IDPool
+ */
+public class IDPoolBenchmark {
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        final int count = 100000;
+        final int distinct = 1000;
+        String[] strings = new String[distinct];
+        for (int index = 0; index < distinct; ++index) {
+            strings[index] = "user" + index + "@4DnqXWdTV8wuZgfqSCX9GjE2kNq7HJrUgQ";
+        }
+        ID[] holder = new ID[count];
+
+        // 1. parse every item
+        long start = usedMemory();
+        for (int index = 0; index < count; ++index) {
+            holder[index] = ID.getInstance(new String(strings[index % distinct]));
+        }
+        long parsed = usedMemory() - start;
+        for (int index = 0; index < count; ++index) {
+            holder[index] = null;
+        }
+
+        // 2. intern every item
+        IDPool pool = IDPool.getInstance();
+        start = usedMemory();
+        for (int index = 0; index < count; ++index) {
+            holder[index] = pool.getID(new String(strings[index % distinct]));
+        }
+        long interned = usedMemory() - start;
+
+        System.out.println("IDs: " + count + ", distinct: " + distinct + ", last: " + holder[count - 1]);
+        System.out.println("heap used, parsed: " + parsed + " bytes, interned: " + interned + " bytes");
+        System.out.println("heap saved: " + (parsed - interned) + " bytes, " + pool.getStatistics());
+    }
+}
@@ -0,0 +1,114 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LRUCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final List<String> evicted = new ArrayList<>();
+        LRUCache<String, Integer> cache = new LRUCache<String, Integer>(3) {
+            @Override
+            protected void onEvicted(String key, Integer value) {
+                evicted.add(key);
+            }
+        };
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        // touch "a", so "b" is the eldest
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("d", 4);
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        assertEquals(3, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void measuresEntriesBySize() {
+        LRUCache<String, byte[]> cache = new LRUCache<String, byte[]>(100) {
+            @Override
+            protected long sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        assertEquals(80, cache.getSize());
+        // replacing an entry measures it again
+        cache.put("a", new byte[10]);
+        assertEquals(50, cache.getSize());
+        cache.put("c", new byte[60]);
+        assertNull(cache.get("b"));
+        assertEquals(70, cache.getSize());
+        cache.remove("a");
+        assertEquals(60, cache.getSize());
+    }
+
+    @Test
+    public void keepsTheNewestEntry() {
+        LRUCache<String, byte[]> cache = new LRUCache<String, byte[]>(10) {
+            @Override
+            protected long sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        cache.put("a", new byte[5]);
+        // larger than capacity, but the most recently used entry is kept
+        cache.put("b", new byte[20]);
+        assertNull(cache.get("a"));
+        assertEquals(20, cache.get("b").length);
+        assertEquals(20, cache.getSize());
+    }
+
+    @Test
+    public void shrinksOnCapacityChanged() {
+        LRUCache<Integer, Integer> cache = new LRUCache<>(10);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(i, i);
+        }
+        cache.setCapacity(4);
+        assertEquals(4, cache.getSize());
+        assertNull(cache.get(5));
+        assertEquals(Integer.valueOf(6), cache.get(6));
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(9));
+    }
+}
@@ -0,0 +1,105 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2019 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LongIntMapTest {
+
+    @Test
+    public void putsAndGets() {
+        LongIntMap map = new LongIntMap();
+        assertEquals(-1, map.get(1));
+        assertEquals(-1, map.put(1, 10));
+        assertEquals(-1, map.put(0, 0));
+        assertEquals(-1, map.put(Long.MIN_VALUE, 20));
+        assertEquals(10, map.put(1, 11));
+        assertEquals(3, map.size());
+        assertEquals(11, map.get(1));
+        assertEquals(0, map.get(0));
+        assertEquals(20, map.get(Long.MIN_VALUE));
+        assertEquals(-1, map.get(2));
+    }
+
+    @Test
+    public void rejectsNegativeValue() {
+        LongIntMap map = new LongIntMap();
+        try {
+            map.put(1, -1);
+            fail("negative value accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, map.size());
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(2019);
+        LongIntMap map = new LongIntMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        long key;
+        int value;
+        for (int i = 0; i < 100000; ++i) {
+            // small key range, so the keys collide and are removed often
+            key = random.nextInt(5000) * 0x100000000L;
+            if (random.nextInt(3) == 0) {
+                Integer old = expected.remove(key);
+                assertEquals(old == null ? -1 : old, map.remove(key));
+            } else {
+                value = random.nextInt(Integer.MAX_VALUE);
+                Integer old = expected.put(key, value);
+                assertEquals(old == null ? -1 : old, map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long k = 0; k < 5000; ++k) {
+            key = k * 0x100000000L;
+            Integer old = expected.get(key);
+            assertEquals(old == null ? -1 : old, map.get(key));
+        }
+    }
+
+    @Test
+    public void clears() {
+        LongIntMap map = new LongIntMap();
+        for (int i = 0; i < 100; ++i) {
+            map.put(i, i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(50));
+        assertEquals(-1, map.remove(50));
+        map.put(50, 5);
+        assertEquals(5, map.get(50));
+    }
+}
@@ -60,6 +60,8 @@ public class ChatboxFragment extends Fragment implements Observer {
     private final Handler msgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
+            // new messages shown
+            mViewModel.markRead(chatBox);
             adapter.notifyDataSetChanged();
             scrollToBottom();
         }
@@ -89,6 +91,7 @@ public class ChatboxFragment extends Fragment implements Observer {
         if (chatBox == null) {
             return null;
         }
+        mViewModel.markRead(chatBox);
         return mViewModel.getMessages(chatBox);
     }
 
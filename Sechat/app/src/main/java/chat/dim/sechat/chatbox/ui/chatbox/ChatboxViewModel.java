@@ -8,6 +8,7 @@ import chat.dim.Content;
 import chat.dim.ID;
 import chat.dim.InstantMessage;
 import chat.dim.User;
+import chat.dim.model.Amanuensis;
 import chat.dim.model.Conversation;
 import chat.dim.model.ConversationDatabase;
 import chat.dim.model.Facebook;
@@ -33,9 +34,15 @@ public class ChatboxViewModel extends ViewModel {
         return msgDB.messagesInConversation(chatBox);
     }
 
-    boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
+    void markRead(Conversation chatBox) {
         ConversationDatabase msgDB = ConversationDatabase.getInstance();
-        return msgDB.insertMessage(iMsg, chatBox);
+        msgDB.markRead(chatBox);
+    }
+
+    boolean insertMessage(InstantMessage iMsg, Conversation chatBox) {
+        // saved in order with the incoming messages
+        Amanuensis clerk = Amanuensis.getInstance();
+        return clerk.insertMessage(iMsg, chatBox);
     }
 
     static MsgType getType(InstantMessage iMsg, Conversation chatBox) {
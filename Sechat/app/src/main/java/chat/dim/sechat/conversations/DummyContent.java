@@ -1,13 +1,6 @@
 package chat.dim.sechat.conversations;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
-import java.util.List;
-
 import chat.dim.ID;
-import chat.dim.InstantMessage;
 import chat.dim.Profile;
 import chat.dim.model.Amanuensis;
 import chat.dim.model.Conversation;
@@ -36,9 +29,8 @@ public class DummyContent extends DummyList<DummyContent.Item> {
     public void reloadData() {
         clearItems();
 
-        List<Conversation> conversationList = new ArrayList<>();
         Conversation chatBox;
-        // load
+        // load (conversations are kept in order by the summary index)
         int count = msgDB.numberOfConversations();
         ID identifier;
         for (int index = 0; index < count; index++) {
@@ -47,18 +39,6 @@ public class DummyContent extends DummyList<DummyContent.Item> {
             if (chatBox == null) {
                 throw new NullPointerException("failed to create chat box: " + identifier);
             }
-            conversationList.add(chatBox);
-        }
-        // sort
-        Comparator<Conversation> comparator = (chatBox1, chatBox2) -> {
-            Date time1 = chatBox1.getLastTime();
-            Date time2 = chatBox2.getLastTime();
-            return time2.compareTo(time1);
-        };
-        Collections.sort(conversationList, comparator);
-        // add
-        for (int index = 0; index < count; index++) {
-            chatBox = conversationList.get(index);
             addItem(new Item(chatBox));
         }
     }
@@ -99,10 +79,13 @@ public class DummyContent extends DummyList<DummyContent.Item> {
         }
 
         String getDesc() {
-            String text = "(last message)";
-            InstantMessage iMsg = chatBox.getLastVisibleMessage();
-            if (iMsg != null) {
-                text = msgDB.getContentText(iMsg.content);
+            String text = msgDB.getLastText(chatBox.identifier);
+            if (text == null) {
+                text = "(last message)";
+            }
+            int unread = msgDB.getUnreadCount(chatBox.identifier);
+            if (unread > 0) {
+                text = "[" + unread + "] " + text;
             }
             return text;
         }
@@ -2,8 +2,6 @@ package chat.dim.sechat.profile.ui.profile;
 
 import android.arch.lifecycle.ViewModel;
 
-import java.util.List;
-
 import chat.dim.ID;
 import chat.dim.User;
 import chat.dim.model.Facebook;
@@ -18,10 +16,6 @@ public class ProfileViewModel extends ViewModel {
             return false;
         }
         Facebook facebook = Facebook.getInstance();
-        List<ID> contacts = facebook.getContacts(user.identifier);
-        if (contacts == null) {
-            return false;
-        }
-        return contacts.contains(contact);
+        return facebook.existsContact(contact, user.identifier);
     }
 }